@@ -0,0 +1,272 @@
+package com.salkuadrat.music;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads cover images for the notification and lock screen.
+ * Images are decoded on a background thread, downsampled to {@link #SIZE},
+ * kept in a size bounded memory LRU (keyed by url) backed by a disk cache.
+ */
+public class ArtworkLoader {
+
+    interface Callback {
+        void onLoaded(String key, Bitmap bitmap);
+    }
+
+    // large enough for the lock screen, notification icons are smaller
+    static final int SIZE = 512;
+
+    private static final int MAX_DISK_FILES = 100;
+    private static final int TIMEOUT = 10000;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MusicArtworkLoader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Bitmap> memory;
+    private final File directory;
+
+    ArtworkLoader(Context context) {
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, 8 * 1024 * 1024);
+        memory = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        directory = new File(context.getCacheDir(), "music_artwork");
+    }
+
+    /**
+     * Images are keyed by their url, or by the local path when there is no url.
+     */
+    static String key(String url, String path) {
+        if (url != null && !url.isEmpty()) {
+            return url;
+        }
+
+        return path;
+    }
+
+    Bitmap get(String key) {
+        return key != null ? memory.get(key) : null;
+    }
+
+    void load(String url, String path, Callback callback) {
+        String key = key(url, path);
+
+        if (key == null) {
+            return;
+        }
+
+        Bitmap cached = memory.get(key);
+
+        if (cached != null) {
+            callback.onLoaded(key, cached);
+            return;
+        }
+
+        executor.execute(() -> {
+            Bitmap bitmap = loadBitmap(key, url, path);
+
+            if (bitmap != null) {
+                memory.put(key, bitmap);
+                handler.post(() -> callback.onLoaded(key, bitmap));
+            }
+        });
+    }
+
+    private Bitmap loadBitmap(String key, String url, String path) {
+        File file = new File(directory, hash(key));
+
+        if (file.exists()) {
+            // already downsampled when it was written
+            file.setLastModified(System.currentTimeMillis());
+            return decode(file, SIZE);
+        }
+
+        File source = null;
+        File download = null;
+
+        if (path != null && new File(path).exists()) {
+            source = new File(path);
+        } else if (url != null && url.startsWith("http")) {
+            download = new File(directory, hash(key) + ".download");
+
+            if (download(url, download)) {
+                source = download;
+            }
+        }
+
+        if (source == null) {
+            return null;
+        }
+
+        Bitmap bitmap = decode(source, SIZE);
+
+        if (download != null) {
+            download.delete();
+        }
+
+        if (bitmap != null) {
+            write(bitmap, file);
+        }
+
+        return bitmap;
+    }
+
+    private boolean download(String url, File file) {
+        HttpURLConnection connection = null;
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            return false;
+        }
+
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+
+            if (connection.getResponseCode() / 100 != 2) {
+                return false;
+            }
+
+            try (InputStream input = connection.getInputStream();
+                 OutputStream output = new FileOutputStream(file)) {
+                byte[] buffer = new byte[8192];
+                int read;
+
+                while ((read = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+            }
+
+            return true;
+        } catch (IOException e) {
+            Log.v("MusicArtworkLoader", "Cannot download " + url + ": " + e.getMessage());
+            file.delete();
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    static Bitmap decode(File file, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = 1;
+
+        while (options.outWidth / (sampleSize * 2) >= size
+            && options.outHeight / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        // cover images are opaque, no need for an alpha channel
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+
+        if (bitmap == null) {
+            return null;
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+
+        if (width > size || height > size) {
+            float scale = Math.min((float) size / width, (float) size / height);
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.round(width * scale), Math.round(height * scale), true);
+
+            if (scaled != bitmap) {
+                bitmap.recycle();
+            }
+
+            return scaled;
+        }
+
+        return bitmap;
+    }
+
+    private void write(Bitmap bitmap, File file) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+
+        try (OutputStream output = new FileOutputStream(file)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, output);
+        } catch (IOException e) {
+            file.delete();
+            return;
+        }
+
+        trim();
+    }
+
+    private void trim() {
+        File[] files = directory.listFiles();
+
+        if (files == null || files.length <= MAX_DISK_FILES) {
+            return;
+        }
+
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+
+        for (int i = 0; i < files.length - MAX_DISK_FILES; i++) {
+            files[i].delete();
+        }
+    }
+
+    static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(key.getBytes());
+            StringBuilder builder = new StringBuilder();
+
+            for (byte b : bytes) {
+                builder.append(String.format("%02x", b));
+            }
+
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    void close() {
+        executor.shutdownNow();
+        memory.evictAll();
+    }
+}
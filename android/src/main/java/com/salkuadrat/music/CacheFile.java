@@ -0,0 +1,329 @@
+package com.salkuadrat.music;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Cache file of a track, filled at any position (sparse).
+ *
+ * While incomplete, the available ranges, the content length and type
+ * are kept in an index file next to it (same name + INDEX_SUFFIX).
+ * A file without index is complete.
+ */
+public class CacheFile {
+
+    static final String INDEX_SUFFIX = ".ranges";
+
+    private static final int INDEX_VERSION = 1;
+    // the index is saved after this many new bytes, to survive a crash
+    private static final long SAVE_INTERVAL = 1024 * 1024;
+
+    interface Listener {
+        // data, info or error changed
+        void onChanged(CacheFile file);
+    }
+
+    final File file;
+    final File index;
+
+    private final RandomAccessFile access;
+    private final FileChannel channel;
+    private final SparseRanges ranges = new SparseRanges();
+    private Listener listener;
+
+    private long length = -1;
+    private String mime;
+    private IOException error;
+    private long unsaved = 0;
+    private boolean closed = false;
+
+    CacheFile(File file) throws IOException {
+        this.file = file;
+        this.index = index(file);
+
+        File parent = file.getParentFile();
+
+        if (parent != null && !parent.exists() && !parent.mkdirs() && !parent.exists()) {
+            throw new IOException("Cannot create " + parent);
+        }
+
+        boolean complete = file.exists() && !index.exists() && file.length() > 0;
+        this.access = new RandomAccessFile(file, "rw");
+        this.channel = access.getChannel();
+
+        if (complete) {
+            length = channel.size();
+            ranges.add(0, length);
+        } else if (index.exists()) {
+            readIndex();
+        } else {
+            // the index marks the file as incomplete, even after a crash
+            saveIndex();
+        }
+    }
+
+    static File index(File file) {
+        return new File(file.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Bytes available from `position` without a gap, in a file which may not be open.
+     */
+    static long available(File file, long position) {
+        if (!index(file).exists()) {
+            return file.exists() ? Math.max(0, file.length() - position) : 0;
+        }
+
+        return readRanges(file).available(position);
+    }
+
+    /**
+     * Total bytes available in a file which may not be open.
+     */
+    static long cachedBytes(File file) {
+        if (!index(file).exists()) {
+            return file.exists() ? file.length() : 0;
+        }
+
+        return readRanges(file).total();
+    }
+
+    private static SparseRanges readRanges(File file) {
+        SparseRanges ranges = new SparseRanges();
+        readIndex(file, ranges);
+        return ranges;
+    }
+
+    /**
+     * Read the ranges of an incomplete file which may not be open.
+     *
+     * @return its length, -1 when unknown
+     */
+    static long readIndex(File file, SparseRanges ranges) {
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(index(file))))) {
+            if (in.readInt() == INDEX_VERSION) {
+                long length = in.readLong();
+                in.readUTF();
+                ranges.read(in);
+                return length;
+            }
+        } catch (IOException e) {
+            ranges.clear();
+        }
+
+        return -1;
+    }
+
+    synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    synchronized long length() {
+        return length;
+    }
+
+    synchronized String mime() {
+        return mime;
+    }
+
+    synchronized IOException error() {
+        return error;
+    }
+
+    /**
+     * Set the content length (-1 when unknown) and type, from the upstream response.
+     */
+    void setInfo(long length, String mime) {
+        Listener listener;
+
+        synchronized (this) {
+            if (length >= 0) {
+                this.length = length;
+            }
+
+            if (mime != null) {
+                this.mime = mime;
+            }
+
+            error = null;
+            listener = this.listener;
+        }
+
+        if (listener != null) {
+            listener.onChanged(this);
+        }
+    }
+
+    void fail(IOException error) {
+        Listener listener;
+
+        synchronized (this) {
+            this.error = error;
+            listener = this.listener;
+        }
+
+        if (listener != null) {
+            listener.onChanged(this);
+        }
+    }
+
+    /**
+     * Write the remaining bytes of `data` at `position`.
+     * FileChannel positional writes are safe from several threads.
+     */
+    void write(long position, ByteBuffer data) throws IOException {
+        long start = position;
+
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+
+        Listener listener;
+
+        synchronized (this) {
+            ranges.add(start, position);
+            unsaved += position - start;
+
+            if (isComplete()) {
+                // nothing to track anymore
+                index.delete();
+                unsaved = 0;
+            } else if (unsaved >= SAVE_INTERVAL) {
+                saveIndex();
+            }
+
+            listener = this.listener;
+        }
+
+        if (listener != null) {
+            listener.onChanged(this);
+        }
+    }
+
+    /**
+     * The upstream response ended at `position` while the length was unknown.
+     */
+    void markEnd(long position) {
+        Listener listener;
+
+        synchronized (this) {
+            if (length < 0) {
+                length = position;
+            }
+
+            if (isComplete()) {
+                index.delete();
+            }
+
+            listener = this.listener;
+        }
+
+        if (listener != null) {
+            listener.onChanged(this);
+        }
+    }
+
+    synchronized long available(long position) {
+        long available = ranges.available(position);
+        return length >= 0 ? Math.min(available, Math.max(0, length - position)) : available;
+    }
+
+    synchronized long nextMissing(long position) {
+        return ranges.nextMissing(position);
+    }
+
+    synchronized long nextAvailable(long position) {
+        return ranges.nextAvailable(position);
+    }
+
+    synchronized long cachedBytes() {
+        return ranges.total();
+    }
+
+    // copy of the available ranges
+    synchronized SparseRanges ranges() {
+        SparseRanges copy = new SparseRanges();
+        copy.add(ranges);
+        return copy;
+    }
+
+    synchronized boolean isComplete() {
+        return length > 0 && ranges.contains(0, length);
+    }
+
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return channel.transferTo(position, count, target);
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            if (!isComplete()) {
+                saveIndex();
+            }
+
+            channel.close();
+            access.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void readIndex() throws IOException {
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(index)))) {
+            if (in.readInt() != INDEX_VERSION) {
+                return;
+            }
+
+            length = in.readLong();
+            String mime = in.readUTF();
+            this.mime = mime.isEmpty() ? null : mime;
+            ranges.read(in);
+        } catch (IOException e) {
+            // a broken index only means downloading again
+            ranges.clear();
+            length = -1;
+        }
+    }
+
+    // called with the lock held
+    private void saveIndex() {
+        unsaved = 0;
+        File temp = new File(index.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(length);
+            out.writeUTF(mime != null ? mime : "");
+            ranges.write(out);
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+
+        if (!temp.renameTo(index)) {
+            temp.delete();
+        }
+    }
+}
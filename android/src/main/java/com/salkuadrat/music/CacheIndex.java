@@ -0,0 +1,375 @@
+package com.salkuadrat.music;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Index of the cache directory, so lookups, statistics and eviction
+ * never have to list or stat the files.
+ *
+ * Entries are kept in memory from the least to the most recently used, and persisted
+ * in an append-only log (LOG_NAME) replayed on load, compacted once it holds
+ * much more records than entries. Without log (first run), it is built
+ * from the directory once. Not thread safe.
+ */
+public class CacheIndex {
+
+    static final String LOG_NAME = "cache.index";
+
+    private static final int VERSION = 1;
+    private static final byte PUT = 1;
+    private static final byte TOUCH = 2;
+    private static final byte REMOVE = 3;
+    // compact when the log has this many records more than twice the entries
+    private static final int COMPACT_SLACK = 256;
+
+    static class Entry {
+        final String name;
+        String url;
+        long length = -1;
+        boolean complete = false;
+        long lastAccess = 0;
+        final SparseRanges ranges = new SparseRanges();
+
+        Entry(String name) {
+            this.name = name;
+        }
+
+        long bytes() {
+            return complete ? length : ranges.total();
+        }
+
+        /**
+         * Bytes available from `position` without a gap.
+         */
+        long available(long position) {
+            if (complete) {
+                return Math.max(0, length - position);
+            }
+
+            long available = ranges.available(position);
+            return length >= 0 ? Math.min(available, Math.max(0, length - position)) : available;
+        }
+    }
+
+    private final File directory;
+    private final File log;
+    // least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private DataOutputStream output;
+    private long bytes = 0;
+    private int records = 0;
+
+    CacheIndex(File directory) {
+        this.directory = directory;
+        this.log = new File(directory, LOG_NAME);
+    }
+
+    /**
+     * Whether the file is the index or a sidecar of a cache file, not a cache file.
+     */
+    static boolean isMetadata(File file) {
+        String name = file.getName();
+        return name.equals(LOG_NAME) || name.startsWith(LOG_NAME + ".")
+            || name.endsWith(CacheFile.INDEX_SUFFIX);
+    }
+
+    void load() {
+        entries.clear();
+        bytes = 0;
+        records = 0;
+
+        if (log.exists() && replay()) {
+            compactIfNeeded();
+        } else {
+            scan();
+            compact();
+        }
+    }
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    int count() {
+        return entries.size();
+    }
+
+    /**
+     * Entries from the least to the most recently used (a copy, so they can be removed).
+     */
+    List<Entry> leastRecentlyUsed() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Record the state of a cache file, which becomes the most recently used.
+     */
+    void put(String name, String url, long length, boolean complete, SparseRanges ranges,
+             long time) {
+        // a new entry, the previous one may still be read
+        Entry previous = detach(name);
+        Entry entry = new Entry(name);
+        entry.url = url != null ? url : previous != null ? previous.url : null;
+
+        entry.length = length;
+        entry.complete = complete;
+        entry.lastAccess = time;
+
+        if (!complete) {
+            entry.ranges.add(ranges);
+        }
+
+        add(entry);
+        append(entry);
+    }
+
+    void touch(String name, long time) {
+        Entry entry = detach(name);
+
+        if (entry == null) {
+            return;
+        }
+
+        entry.lastAccess = time;
+        add(entry);
+
+        try {
+            DataOutputStream out = output();
+            out.writeByte(TOUCH);
+            out.writeUTF(name);
+            out.writeLong(time);
+            written();
+        } catch (IOException e) {
+            closeOutput();
+        }
+    }
+
+    void remove(String name) {
+        if (detach(name) == null) {
+            return;
+        }
+
+        try {
+            DataOutputStream out = output();
+            out.writeByte(REMOVE);
+            out.writeUTF(name);
+            written();
+        } catch (IOException e) {
+            closeOutput();
+        }
+    }
+
+    void clear() {
+        entries.clear();
+        bytes = 0;
+        compact();
+    }
+
+    void close() {
+        closeOutput();
+    }
+
+    private void add(Entry entry) {
+        entries.put(entry.name, entry);
+        bytes += entry.bytes();
+    }
+
+    private Entry detach(String name) {
+        Entry entry = entries.remove(name);
+
+        if (entry != null) {
+            bytes -= entry.bytes();
+        }
+
+        return entry;
+    }
+
+    private void append(Entry entry) {
+        try {
+            write(output(), entry);
+            written();
+        } catch (IOException e) {
+            closeOutput();
+        }
+    }
+
+    private void written() throws IOException {
+        output.flush();
+        records++;
+        compactIfNeeded();
+    }
+
+    private static void write(DataOutputStream out, Entry entry) throws IOException {
+        out.writeByte(PUT);
+        out.writeUTF(entry.name);
+        out.writeUTF(entry.url != null ? entry.url : "");
+        out.writeLong(entry.length);
+        out.writeBoolean(entry.complete);
+        out.writeLong(entry.lastAccess);
+        entry.ranges.write(out);
+    }
+
+    // returns false when the log cannot be used
+    private boolean replay() {
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(log)))) {
+            if (in.readInt() != VERSION) {
+                return false;
+            }
+
+            while (true) {
+                byte op;
+
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                String name = in.readUTF();
+
+                if (op == PUT) {
+                    Entry entry = new Entry(name);
+                    String url = in.readUTF();
+                    entry.url = url.isEmpty() ? null : url;
+                    entry.length = in.readLong();
+                    entry.complete = in.readBoolean();
+                    entry.lastAccess = in.readLong();
+                    entry.ranges.read(in);
+                    detach(name);
+                    add(entry);
+                } else if (op == TOUCH) {
+                    long time = in.readLong();
+                    Entry entry = detach(name);
+
+                    if (entry != null) {
+                        entry.lastAccess = time;
+                        add(entry);
+                    }
+                } else if (op == REMOVE) {
+                    detach(name);
+                } else {
+                    break;
+                }
+
+                records++;
+            }
+        } catch (EOFException e) {
+            // a record cut by a crash, the entries before it are fine
+            records = Integer.MAX_VALUE;
+        } catch (IOException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    // first run: build the entries from the files
+    private void scan() {
+        File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        List<Entry> scanned = new ArrayList<>();
+
+        for (File file : files) {
+            if (!file.isFile() || isMetadata(file) || file.getName().endsWith(".download")) {
+                continue;
+            }
+
+            Entry entry = new Entry(file.getName());
+            entry.lastAccess = file.lastModified();
+
+            if (CacheFile.index(file).exists()) {
+                entry.length = CacheFile.readIndex(file, entry.ranges);
+            } else {
+                entry.length = file.length();
+                entry.complete = entry.length > 0;
+            }
+
+            scanned.add(entry);
+        }
+
+        Collections.sort(scanned, (a, b) -> Long.compare(a.lastAccess, b.lastAccess));
+
+        for (Entry entry : scanned) {
+            add(entry);
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (records > entries.size() * 2 + COMPACT_SLACK) {
+            compact();
+        }
+    }
+
+    // rewrite the log with the current entries only
+    private void compact() {
+        closeOutput();
+        File temp = new File(directory, LOG_NAME + ".tmp");
+
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(VERSION);
+
+            for (Entry entry : entries.values()) {
+                write(out, entry);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+
+        if (temp.renameTo(log)) {
+            records = entries.size();
+        } else {
+            temp.delete();
+        }
+    }
+
+    private DataOutputStream output() throws IOException {
+        if (output == null) {
+            if (!log.exists()) {
+                compact();
+            }
+
+            output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(log, true)));
+        }
+
+        return output;
+    }
+
+    private void closeOutput() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException ignored) {
+            }
+
+            output = null;
+        }
+    }
+}
@@ -0,0 +1,762 @@
+package com.salkuadrat.music;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Playback engine decoding with MediaExtractor + MediaCodec into a bounded PCM ring buffer,
+ * played by an AudioTrack.
+ *
+ * A decoder thread fills the ring buffer and a writer thread feeds the AudioTrack from it.
+ * Playback is prepared (and a seek completes) as soon as `startMs` of audio is decoded,
+ * and it stalls (buffering) when the ring buffer runs dry, until `startMs` is decoded again.
+ * The position is counted in frames played by the AudioTrack.
+ */
+public class CodecPlaybackEngine implements PlaybackEngine {
+
+    private static final int STATE_PREPARING = 0;
+    private static final int STATE_PREPARED = 1;
+    private static final int STATE_STARTED = 2;
+    private static final int STATE_PAUSED = 3;
+    private static final int STATE_COMPLETED = 4;
+    private static final int STATE_STOPPED = 5;
+
+    private static final long TIMEOUT_US = 10000;
+    // size of the chunks written to the AudioTrack
+    private static final int CHUNK_MS = 20;
+    // how long the writer waits before checking again for data or room
+    private static final int POLL_MS = 5;
+    private static final int BUFFERING_UPDATE_INTERVAL = 1000;
+
+    private final Callback callback;
+    private final Handler handler;
+    private final PowerManager.WakeLock wakeLock;
+    private final int bufferMs;
+    private final int startMs;
+
+    private String url;
+    private Session session;
+    private volatile float volume = 1;
+    private volatile int audioSessionId = AudioManager.AUDIO_SESSION_ID_GENERATE;
+    private CodecPlaybackEngine next;
+
+    /**
+     * @param bufferMs capacity of the PCM ring buffer
+     * @param startMs decoded audio needed to start, after a seek and after a stall
+     */
+    CodecPlaybackEngine(Context context, Callback callback, int bufferMs, int startMs) {
+        this.callback = callback;
+        this.handler = new Handler(Looper.myLooper() != null ? Looper.myLooper() : Looper.getMainLooper());
+        this.bufferMs = Math.max(bufferMs, 200);
+        this.startMs = Math.max(0, Math.min(startMs, this.bufferMs));
+
+        PowerManager power = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.wakeLock = power.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "music:CodecPlaybackEngine");
+        this.wakeLock.setReferenceCounted(false);
+    }
+
+    @Override
+    public void setDataSource(String url) throws IOException {
+        this.url = url;
+    }
+
+    @Override
+    public void prepareAsync() {
+        reset();
+        session = new Session(url);
+        session.decoder.start();
+    }
+
+    @Override
+    public void start() {
+        Session s = session;
+
+        if (s == null) {
+            return;
+        }
+
+        synchronized (s.lock) {
+            if (s.state == STATE_COMPLETED) {
+                // like MediaPlayer, start again from the beginning
+                s.seek(0, false);
+            }
+
+            if (s.state == STATE_PREPARED || s.state == STATE_PAUSED) {
+                s.state = STATE_STARTED;
+                s.track.play();
+                wakeLock.acquire();
+                s.lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void pause() {
+        Session s = session;
+
+        if (s == null) {
+            return;
+        }
+
+        synchronized (s.lock) {
+            if (s.state == STATE_STARTED) {
+                s.state = STATE_PAUSED;
+                s.track.pause();
+            }
+        }
+
+        wakeLock.release();
+    }
+
+    @Override
+    public void stop() {
+        Session s = session;
+
+        if (s == null) {
+            return;
+        }
+
+        synchronized (s.lock) {
+            if (s.track != null) {
+                s.track.pause();
+            }
+
+            s.state = STATE_STOPPED;
+        }
+
+        wakeLock.release();
+    }
+
+    @Override
+    public void reset() {
+        if (session != null) {
+            // the decoder thread releases everything once it stops
+            session.close();
+            session = null;
+        }
+
+        wakeLock.release();
+    }
+
+    @Override
+    public void release() {
+        reset();
+        next = null;
+    }
+
+    @Override
+    public void seekTo(int position) {
+        seekTo(position, false);
+    }
+
+    @Override
+    public void seekTo(int position, boolean fast) {
+        Session s = session;
+
+        if (s == null) {
+            return;
+        }
+
+        synchronized (s.lock) {
+            s.seek(position, fast);
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        Session s = session;
+
+        if (s == null) {
+            return false;
+        }
+
+        synchronized (s.lock) {
+            return s.state == STATE_STARTED;
+        }
+    }
+
+    @Override
+    public void setAudioSessionId(int sessionId) {
+        this.audioSessionId = sessionId;
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        this.volume = volume;
+        Session s = session;
+
+        if (s == null) {
+            return;
+        }
+
+        synchronized (s.lock) {
+            if (s.track != null) {
+                s.track.setVolume(volume);
+            }
+        }
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        Session s = session;
+
+        if (s == null) {
+            return 0;
+        }
+
+        synchronized (s.lock) {
+            return (int) s.position();
+        }
+    }
+
+    @Override
+    public int getDuration() {
+        Session s = session;
+        return s != null ? (int) s.duration : -1;
+    }
+
+    @Override
+    public boolean getTimestamp(long now, Timestamp timestamp) {
+        Session s = session;
+
+        if (s == null) {
+            return false;
+        }
+
+        synchronized (s.lock) {
+            if (s.track == null) {
+                return false;
+            }
+
+            timestamp.position = s.position();
+            timestamp.speed = s.state == STATE_STARTED && !s.seeking && !s.underrun ? 1 : 0;
+            return true;
+        }
+    }
+
+    @Override
+    public void setNext(PlaybackEngine next) {
+        this.next = (CodecPlaybackEngine) next;
+    }
+
+    // deliver on the engine looper, unless the session has been reset meanwhile
+    private void post(Session s, Runnable runnable) {
+        handler.post(() -> {
+            if (session == s) {
+                runnable.run();
+            }
+        });
+    }
+
+    private void onCompletion() {
+        wakeLock.release();
+        CodecPlaybackEngine next = this.next;
+
+        if (next != null) {
+            next.start();
+        }
+
+        callback.onCompletion(this);
+    }
+
+    private class Session {
+        final Object lock = new Object();
+        final String url;
+        final Thread decoder;
+        Thread writer;
+
+        // owned by the decoder thread
+        MediaExtractor extractor;
+        MediaCodec codec;
+        volatile long duration = -1;
+
+        // guarded by lock
+        AudioTrack track;
+        PcmRingBuffer ring;
+        int sampleRate;
+        int frameSize;
+        int startBytes;
+        int state = STATE_PREPARING;
+        boolean closed = false;
+        boolean seeking = false;
+        boolean underrun = false;
+        long pendingSeek = -1;
+        boolean pendingFast = false;
+        long positionBase = 0;
+        long headBase = 0;
+        long framesWritten = 0;
+
+        Session(String url) {
+            this.url = url;
+            this.decoder = new Thread(this::decode, "MusicDecoder");
+        }
+
+        void close() {
+            synchronized (lock) {
+                closed = true;
+                lock.notifyAll();
+
+                if (track != null) {
+                    track.pause();
+                }
+
+                if (ring != null) {
+                    ring.close();
+                }
+            }
+        }
+
+        boolean isClosed() {
+            synchronized (lock) {
+                return closed;
+            }
+        }
+
+        // owned by the decoder thread, whether the seek taken is fast
+        private boolean seekFast = false;
+
+        // called with lock held
+        void seek(long position, boolean fast) {
+            seeking = true;
+            underrun = false;
+            pendingSeek = position;
+            pendingFast = fast;
+            positionBase = position;
+
+            if (track != null) {
+                // drop what is queued in the AudioTrack, the writer never blocks in it
+                track.pause();
+                track.flush();
+                headBase = head();
+                framesWritten = 0;
+
+                if (state == STATE_STARTED) {
+                    track.play();
+                }
+            }
+
+            if (ring != null) {
+                ring.clear();
+            }
+
+            if (state == STATE_COMPLETED) {
+                state = STATE_PAUSED;
+            }
+
+            lock.notifyAll();
+        }
+
+        // called with lock held
+        long head() {
+            return track.getPlaybackHeadPosition() & 0xffffffffL;
+        }
+
+        // called with lock held
+        long position() {
+            if (seeking || track == null || sampleRate == 0) {
+                return positionBase;
+            }
+
+            long position = positionBase + (head() - headBase) * 1000 / sampleRate;
+            return duration > 0 ? Math.min(position, duration) : position;
+        }
+
+        private void decode() {
+            try {
+                extractor = new MediaExtractor();
+                extractor.setDataSource(url);
+                MediaFormat format = selectTrack();
+
+                if (format == null) {
+                    throw new IOException("No audio track in " + url);
+                }
+
+                if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                    duration = format.getLong(MediaFormat.KEY_DURATION) / 1000;
+                }
+
+                codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+                codec.configure(format, null, null, 0);
+                codec.start();
+                decodeLoop();
+            } catch (IOException e) {
+                onError(MediaPlayer.MEDIA_ERROR_IO, e);
+            } catch (Exception e) {
+                onError(MediaPlayer.MEDIA_ERROR_MALFORMED, e);
+            } finally {
+                releaseAll();
+            }
+        }
+
+        private MediaFormat selectTrack() {
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    return format;
+                }
+            }
+
+            return null;
+        }
+
+        private void decodeLoop() throws InterruptedException {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            boolean outputDone = false;
+            long trimUs = 0;
+            long lastUpdate = 0;
+
+            while (!isClosed()) {
+                // read the epoch before the seek, so a seek happening after
+                // makes the next write drop its (old) samples
+                PcmRingBuffer ring = ring();
+                int epoch = ring != null ? ring.epoch() : 0;
+                long seek = takeSeek();
+
+                if (seek >= 0) {
+                    extractor.seekTo(seek * 1000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    codec.flush();
+                    inputDone = false;
+                    outputDone = false;
+
+                    if (seekFast) {
+                        // played from the sync frame, which becomes the position
+                        trimUs = 0;
+                        rebase(seek, extractor.getSampleTime() / 1000);
+                    } else {
+                        // samples before the target are dropped, for an exact position
+                        trimUs = seek * 1000;
+                    }
+                }
+
+                if (!inputDone) {
+                    inputDone = feed();
+                }
+
+                if (!outputDone) {
+                    int index = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+
+                    if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        createTrack(codec.getOutputFormat());
+                    } else if (index >= 0) {
+                        ring = ring();
+                        ByteBuffer output = codec.getOutputBuffer(index);
+
+                        if (ring != null && output != null && info.size > 0) {
+                            int skip = 0;
+
+                            if (info.presentationTimeUs < trimUs) {
+                                long frames = (trimUs - info.presentationTimeUs) * sampleRate / 1000000;
+                                skip = (int) Math.min(info.size, frames * frameSize);
+                            }
+
+                            output.limit(info.offset + info.size);
+                            output.position(info.offset + skip);
+                            ring.write(output, epoch);
+                        }
+
+                        codec.releaseOutputBuffer(index, false);
+
+                        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            outputDone = true;
+
+                            if (ring != null) {
+                                ring.end();
+                            }
+                        }
+                    }
+                }
+
+                checkReady();
+
+                long now = SystemClock.elapsedRealtime();
+
+                if (now - lastUpdate >= BUFFERING_UPDATE_INTERVAL) {
+                    lastUpdate = now;
+                    updateBuffering(outputDone);
+                }
+
+                if (outputDone) {
+                    // everything is decoded, wait for a seek (or the end)
+                    synchronized (lock) {
+                        while (!closed && pendingSeek < 0) {
+                            lock.wait();
+                        }
+                    }
+                }
+            }
+        }
+
+        // queue the next sample to the codec, returns true at the end of the stream
+        private boolean feed() {
+            int index = codec.dequeueInputBuffer(TIMEOUT_US);
+
+            if (index < 0) {
+                return false;
+            }
+
+            ByteBuffer input = codec.getInputBuffer(index);
+            int size = input != null ? extractor.readSampleData(input, 0) : -1;
+
+            if (size < 0) {
+                codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return true;
+            }
+
+            codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+            extractor.advance();
+            return false;
+        }
+
+        private PcmRingBuffer ring() {
+            synchronized (lock) {
+                return ring;
+            }
+        }
+
+        private long takeSeek() {
+            synchronized (lock) {
+                long seek = pendingSeek;
+                pendingSeek = -1;
+                seekFast = pendingFast;
+                return seek;
+            }
+        }
+
+        // the fast seek to `target` actually starts at `start`
+        private void rebase(long target, long start) {
+            synchronized (lock) {
+                if (start >= 0 && pendingSeek < 0 && positionBase == target) {
+                    positionBase = start;
+                }
+            }
+        }
+
+        private void createTrack(MediaFormat format) {
+            synchronized (lock) {
+                if (track != null || closed) {
+                    // same stream after a flush
+                    return;
+                }
+
+                sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                int encoding = AudioFormat.ENCODING_PCM_16BIT;
+
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                    && format.containsKey(MediaFormat.KEY_PCM_ENCODING)) {
+                    encoding = format.getInteger(MediaFormat.KEY_PCM_ENCODING);
+                }
+
+                int bytesPerSample = encoding == AudioFormat.ENCODING_PCM_FLOAT ? 4
+                    : encoding == AudioFormat.ENCODING_PCM_8BIT ? 1 : 2;
+                int channelMask = channels == 1
+                    ? AudioFormat.CHANNEL_OUT_MONO
+                    : AudioFormat.CHANNEL_OUT_STEREO;
+                frameSize = bytesPerSample * channels;
+
+                int bytesPerMs = sampleRate * frameSize / 1000;
+                int capacity = bufferMs * bytesPerMs / frameSize * frameSize;
+                startBytes = Math.max(frameSize, startMs * bytesPerMs / frameSize * frameSize);
+                ring = new PcmRingBuffer(capacity);
+
+                // a small AudioTrack buffer, the ring buffer does the buffering
+                int minBuffer = AudioTrack.getMinBufferSize(sampleRate, channelMask, encoding);
+                track = new AudioTrack(
+                    new AudioAttributes.Builder()
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .build(),
+                    new AudioFormat.Builder()
+                        .setSampleRate(sampleRate)
+                        .setChannelMask(channelMask)
+                        .setEncoding(encoding)
+                        .build(),
+                    Math.max(minBuffer, CHUNK_MS * bytesPerMs) * 2,
+                    AudioTrack.MODE_STREAM,
+                    audioSessionId);
+                track.setVolume(volume);
+                headBase = head();
+
+                writer = new Thread(this::write, "MusicWriter");
+                writer.start();
+            }
+        }
+
+        private void checkReady() {
+            synchronized (lock) {
+                if (ring == null || (ring.size() < startBytes && !ring.isEnded())) {
+                    return;
+                }
+
+                if (state == STATE_PREPARING) {
+                    state = STATE_PREPARED;
+                    post(this, () -> callback.onPrepared(CodecPlaybackEngine.this));
+                }
+
+                if (seeking && pendingSeek < 0) {
+                    seeking = false;
+                    lock.notifyAll();
+                    post(this, () -> callback.onSeekComplete(CodecPlaybackEngine.this));
+                }
+            }
+        }
+
+        private void updateBuffering(boolean ended) {
+            long durationUs = duration * 1000;
+
+            if (durationUs <= 0) {
+                return;
+            }
+
+            long cached = extractor.getCachedDuration();
+            long sample = extractor.getSampleTime();
+            int percent = ended || cached < 0 ? 100
+                : (int) Math.min(100, (Math.max(0, sample) + cached) * 100 / durationUs);
+            post(this, () -> callback.onBufferingUpdate(CodecPlaybackEngine.this, percent));
+        }
+
+        private void write() {
+            int chunkBytes;
+            PcmRingBuffer ring;
+
+            synchronized (lock) {
+                chunkBytes = Math.max(frameSize, CHUNK_MS * sampleRate / 1000 * frameSize);
+                ring = this.ring;
+            }
+
+            byte[] chunk = new byte[chunkBytes];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            int epoch = ring.epoch();
+            int size = 0;
+            int offset = 0;
+
+            try {
+                synchronized (lock) {
+                    while (!closed) {
+                        if (state != STATE_STARTED || seeking) {
+                            lock.wait();
+                            continue;
+                        }
+
+                        if (ring.epoch() != epoch) {
+                            // seeked, the chunk is from before
+                            epoch = ring.epoch();
+                            size = 0;
+                            offset = 0;
+                        }
+
+                        if (underrun) {
+                            if (ring.size() < startBytes && !ring.isEnded()) {
+                                lock.wait(POLL_MS);
+                                continue;
+                            }
+
+                            underrun = false;
+                            post(this, () -> callback.onBufferingEnd(CodecPlaybackEngine.this));
+                        }
+
+                        if (offset == size) {
+                            int read = ring.read(chunk, 0, chunk.length);
+
+                            if (read < 0) {
+                                // everything is written, complete when it has been played
+                                if (head() - headBase >= framesWritten) {
+                                    state = STATE_COMPLETED;
+                                    track.pause();
+                                    post(this, CodecPlaybackEngine.this::onCompletion);
+                                } else {
+                                    lock.wait(POLL_MS);
+                                }
+                                continue;
+                            }
+
+                            if (read == 0) {
+                                underrun = true;
+                                post(this, () -> callback.onBufferingStart(CodecPlaybackEngine.this));
+                                continue;
+                            }
+
+                            size = read;
+                            offset = 0;
+                        }
+
+                        buffer.limit(size);
+                        buffer.position(offset);
+                        int written = track.write(buffer, size - offset, AudioTrack.WRITE_NON_BLOCKING);
+
+                        if (written < 0) {
+                            throw new IllegalStateException("AudioTrack write error " + written);
+                        }
+
+                        offset += written;
+                        framesWritten += written / frameSize;
+
+                        if (written == 0) {
+                            // the AudioTrack is full
+                            lock.wait(POLL_MS);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } catch (Exception e) {
+                onError(MediaPlayer.MEDIA_ERROR_UNKNOWN, e);
+            }
+        }
+
+        private void onError(int extra, Exception e) {
+            if (isClosed()) {
+                return;
+            }
+
+            Log.v("MusicPlayerPlugin", "CodecPlaybackEngine error " + e.getMessage());
+            post(this, () -> callback.onError(
+                CodecPlaybackEngine.this, MediaPlayer.MEDIA_ERROR_UNKNOWN, extra));
+        }
+
+        private void releaseAll() {
+            close();
+
+            try {
+                if (writer != null) {
+                    writer.join();
+                }
+            } catch (InterruptedException ignored) {
+            }
+
+            if (codec != null) {
+                codec.release();
+            }
+
+            if (extractor != null) {
+                extractor.release();
+            }
+
+            synchronized (lock) {
+                if (track != null) {
+                    track.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.salkuadrat.music;
+
+import android.os.Handler;
+
+/**
+ * Volume ramps of a crossfade between two engines, run by a single runnable
+ * on the playback thread for both of them.
+ *
+ * The progress is the position of the incoming engine, i.e. its audio clock,
+ * so the ramps follow the samples actually played (and stop while stalled).
+ * Equal power curves keep the loudness constant through the fade.
+ */
+public class Crossfade implements Runnable {
+
+    // called on the playback thread
+    interface Listener {
+        // the incoming engine is now the louder one
+        void onMidpoint();
+
+        // the outgoing engine is silent, to be reset and recycled
+        void onFinished();
+    }
+
+    // volume update interval (ms)
+    private static final int INTERVAL = 20;
+
+    private final Handler handler;
+    private final Listener listener;
+    private final PlaybackEngine.Timestamp timestamp = new PlaybackEngine.Timestamp();
+
+    private PlaybackEngine outgoing;
+    private PlaybackEngine incoming;
+    private int duration;
+    private boolean running = false;
+    private boolean paused = false;
+    private boolean midpoint = false;
+
+    Crossfade(Handler handler, Listener listener) {
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    /**
+     * Start the (prepared) incoming engine silently and fade over `duration` ms.
+     */
+    void start(PlaybackEngine outgoing, PlaybackEngine incoming, int duration) {
+        this.outgoing = outgoing;
+        this.incoming = incoming;
+        this.duration = Math.max(1, duration);
+        running = true;
+        paused = false;
+        midpoint = false;
+
+        outgoing.setVolume(1);
+        incoming.setVolume(0);
+        incoming.start();
+        handler.removeCallbacks(this);
+        handler.post(this);
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    boolean isPastMidpoint() {
+        return running && midpoint;
+    }
+
+    PlaybackEngine outgoing() {
+        return outgoing;
+    }
+
+    void pause() {
+        if (!running || paused) {
+            return;
+        }
+
+        paused = true;
+        handler.removeCallbacks(this);
+        outgoing.pause();
+        incoming.pause();
+    }
+
+    void resume() {
+        if (!running || !paused) {
+            return;
+        }
+
+        paused = false;
+        outgoing.start();
+        incoming.start();
+        handler.post(this);
+    }
+
+    /**
+     * End the fade now: the incoming engine at full volume, the outgoing one
+     * left to the listener.
+     */
+    void finish() {
+        if (!running) {
+            return;
+        }
+
+        if (!midpoint) {
+            midpoint = true;
+            listener.onMidpoint();
+        }
+
+        end();
+        listener.onFinished();
+    }
+
+    /**
+     * Stop the ramps without any callback, the engines are left as they are
+     * at full volume.
+     */
+    void cancel() {
+        if (running) {
+            end();
+            outgoing.setVolume(1);
+        }
+    }
+
+    private void end() {
+        running = false;
+        paused = false;
+        handler.removeCallbacks(this);
+        incoming.setVolume(1);
+    }
+
+    @Override
+    public void run() {
+        if (!running || paused) {
+            return;
+        }
+
+        long position = incoming.getTimestamp(System.nanoTime(), timestamp)
+            ? timestamp.position
+            : incoming.getCurrentPosition();
+        float progress = Math.max(0, Math.min(1, position / (float) duration));
+        double angle = progress * Math.PI / 2;
+
+        outgoing.setVolume((float) Math.cos(angle));
+        incoming.setVolume((float) Math.sin(angle));
+
+        if (!midpoint && progress >= 0.5f) {
+            midpoint = true;
+            listener.onMidpoint();
+        }
+
+        if (progress >= 1) {
+            finish();
+        } else if (running) {
+            handler.postDelayed(this, INTERVAL);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.salkuadrat.music;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.MediaPlayer;
+import android.media.MediaTimestamp;
+import android.os.Build;
+import android.os.PowerManager;
+
+import java.io.IOException;
+
+/**
+ * Playback engine backed by android.media.MediaPlayer.
+ */
+public class MediaPlayerEngine implements PlaybackEngine, MediaPlayer.OnPreparedListener,
+    MediaPlayer.OnCompletionListener, MediaPlayer.OnSeekCompleteListener,
+    MediaPlayer.OnInfoListener, MediaPlayer.OnBufferingUpdateListener,
+    MediaPlayer.OnErrorListener {
+
+    private final MediaPlayer player;
+    private final Callback callback;
+    private final MediaPlayerPool pool;
+
+    MediaPlayerEngine(Context context, Callback callback) {
+        this(context, callback, null);
+    }
+
+    /**
+     * @param pool where the MediaPlayer is taken from and recycled to on release,
+     *             null to create and release it
+     */
+    MediaPlayerEngine(Context context, Callback callback, MediaPlayerPool pool) {
+        this.callback = callback;
+        this.pool = pool;
+        this.player = pool != null ? pool.acquire() : new MediaPlayer();
+
+        AudioAttributes audioAttributes = new AudioAttributes.Builder()
+            .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+            .setUsage(AudioAttributes.USAGE_MEDIA)
+            .build();
+        player.setAudioAttributes(audioAttributes);
+
+        // Make sure the media player will acquire a wake-lock while playing.
+        // If we don't do that, the CPU might go to sleep while the
+        // song is playing, causing playback to stop.
+        player.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
+        player.reset();
+        // a recycled player keeps its volume
+        player.setVolume(1, 1);
+
+        // we want the media player to notify us when it's ready preparing,
+        // and when it's done playing
+        player.setOnInfoListener(this);
+        player.setOnPreparedListener(this);
+        player.setOnCompletionListener(this);
+        player.setOnSeekCompleteListener(this);
+        player.setOnBufferingUpdateListener(this);
+        player.setOnErrorListener(this);
+    }
+
+    @Override
+    public void setDataSource(String url) throws IOException {
+        player.setDataSource(url);
+    }
+
+    @Override
+    public void prepareAsync() {
+        player.prepareAsync();
+    }
+
+    @Override
+    public void start() {
+        player.start();
+    }
+
+    @Override
+    public void pause() {
+        player.pause();
+    }
+
+    @Override
+    public void stop() {
+        player.stop();
+    }
+
+    @Override
+    public void reset() {
+        player.reset();
+    }
+
+    @Override
+    public void release() {
+        if (pool != null) {
+            pool.recycle(player);
+        } else {
+            player.release();
+        }
+    }
+
+    @Override
+    public void seekTo(int position) {
+        player.seekTo(position);
+    }
+
+    @Override
+    public void seekTo(int position, boolean fast) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            player.seekTo(position, fast ? MediaPlayer.SEEK_PREVIOUS_SYNC : MediaPlayer.SEEK_CLOSEST);
+        } else {
+            // always to a sync frame before O
+            player.seekTo(position);
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return player.isPlaying();
+    }
+
+    @Override
+    public void setAudioSessionId(int sessionId) {
+        try {
+            player.setAudioSessionId(sessionId);
+        } catch (IllegalStateException e) {
+            // not idle, it keeps its own session
+        }
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        try {
+            player.setVolume(volume, volume);
+        } catch (IllegalStateException e) {
+            // in the error state, which onError reports
+        }
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return player.getCurrentPosition();
+    }
+
+    @Override
+    public int getDuration() {
+        return player.getDuration();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean getTimestamp(long now, Timestamp timestamp) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+
+        MediaTimestamp mediaTimestamp = player.getTimestamp();
+
+        if (mediaTimestamp == null) {
+            return false;
+        }
+
+        long anchorNanos = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+            ? mediaTimestamp.getAnchorSystemNanoTime()
+            : mediaTimestamp.getAnchorSytemNanoTime();
+        timestamp.speed = mediaTimestamp.getMediaClockRate();
+        timestamp.position = mediaTimestamp.getAnchorMediaTimeUs() / 1000
+            + (long) ((now - anchorNanos) / 1000000 * timestamp.speed);
+        return true;
+    }
+
+    @Override
+    public void setNext(PlaybackEngine next) {
+        player.setNextMediaPlayer(next != null ? ((MediaPlayerEngine) next).player : null);
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+        callback.onPrepared(this);
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+        callback.onCompletion(this);
+    }
+
+    @Override
+    public void onSeekComplete(MediaPlayer mp) {
+        callback.onSeekComplete(this);
+    }
+
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+        switch (what) {
+            case MediaPlayer.MEDIA_INFO_BUFFERING_START:
+                callback.onBufferingStart(this);
+                break;
+            case MediaPlayer.MEDIA_INFO_BUFFERING_END:
+                callback.onBufferingEnd(this);
+                break;
+        }
+
+        return false;
+    }
+
+    @Override
+    public void onBufferingUpdate(MediaPlayer mp, int percent) {
+        callback.onBufferingUpdate(this, percent);
+    }
+
+    @Override
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+        callback.onError(this, what, extra);
+        return true;
+    }
+}
@@ -0,0 +1,55 @@
+package com.salkuadrat.music;
+
+import android.media.MediaPlayer;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded pool of idle (reset) MediaPlayers, so players created and closed
+ * over and over (e.g. previews in a scrolling feed) reuse the native players
+ * instead of creating and releasing one each time.
+ *
+ * Used on a single thread, the one the pooled players deliver their callbacks on.
+ */
+public class MediaPlayerPool {
+
+    private final int maxIdle;
+    // least recently recycled first
+    private final ArrayDeque<MediaPlayer> idle = new ArrayDeque<>();
+
+    MediaPlayerPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    MediaPlayer acquire() {
+        MediaPlayer player = idle.pollLast();
+        return player != null ? player : new MediaPlayer();
+    }
+
+    /**
+     * Reset the player and keep it for the next acquire, releasing
+     * the least recently recycled one above the limit.
+     */
+    void recycle(MediaPlayer player) {
+        try {
+            player.reset();
+        } catch (IllegalStateException e) {
+            player.release();
+            return;
+        }
+
+        idle.addLast(player);
+
+        while (idle.size() > maxIdle) {
+            idle.pollFirst().release();
+        }
+    }
+
+    void close() {
+        MediaPlayer player;
+
+        while ((player = idle.pollFirst()) != null) {
+            player.release();
+        }
+    }
+}
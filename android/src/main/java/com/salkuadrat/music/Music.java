@@ -2,19 +2,173 @@ package com.salkuadrat.music;
 
 import android.graphics.Bitmap;
 import android.support.v4.media.session.MediaSessionCompat;
+import android.util.Log;
 
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the current (or preloaded) music and its playback state.
+ *
+ * Changes create a new snapshot, published by the plugin through an atomic reference,
+ * so any thread (e.g. the notification) reads consistent state without locks.
+ */
 public class Music {
-    String id = "";
-    String title = "";
-    String artist = "";
-    String album = "";
-    Bitmap image;
-    String imageUrl = "";
-    int duration = 0;
-    int position = 0;
-    boolean showPrevious = false;
-    boolean showNext = false;
-    boolean isPlaying = false;
-    boolean isLoading = false;
-    MediaSessionCompat session;
+
+    enum State {
+        IDLE,
+        LOADING,
+        READY,
+        PLAYING,
+        PAUSED,
+        BUFFERING,
+        COMPLETED,
+        ERROR;
+
+        boolean canMoveTo(State next) {
+            switch (next) {
+                case IDLE:
+                case LOADING:
+                case ERROR:
+                    return true;
+                case READY:
+                    return this == IDLE || this == LOADING;
+                case PLAYING:
+                    return this != PLAYING;
+                case PAUSED:
+                    return this == READY || this == PLAYING || this == BUFFERING;
+                case BUFFERING:
+                    return this == PLAYING;
+                case COMPLETED:
+                    return this == PLAYING || this == BUFFERING;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Change applied to the published snapshot, may be applied more than once.
+     */
+    interface Change {
+        Music apply(Music music);
+    }
+
+    final String id;
+    final String title;
+    final String artist;
+    final String album;
+    final Bitmap image;
+    final String imageUrl;
+    final int duration;
+    final int position;
+    final boolean showPrevious;
+    final boolean showNext;
+    final State state;
+    final boolean isPlaying;
+    final boolean isLoading;
+    final boolean isBuffering;
+    final MediaSessionCompat session;
+    // the music as sent from Dart (e.g. to persist it), null when there is none
+    final Map<String, Object> track;
+
+    Music() {
+        this("", "", "", "", null, "", 0, 0, false, false, State.IDLE, null, null);
+    }
+
+    private Music(String id, String title, String artist, String album,
+                  Bitmap image, String imageUrl, int duration, int position,
+                  boolean showPrevious, boolean showNext, State state,
+                  MediaSessionCompat session, Map<String, Object> track) {
+        this.id = id;
+        this.title = title;
+        this.artist = artist;
+        this.album = album;
+        this.image = image;
+        this.imageUrl = imageUrl;
+        this.duration = duration;
+        this.position = position;
+        this.showPrevious = showPrevious;
+        this.showNext = showNext;
+        this.state = state;
+        this.isPlaying = state == State.PLAYING || state == State.BUFFERING;
+        this.isLoading = state == State.LOADING;
+        this.isBuffering = state == State.BUFFERING;
+        this.session = session;
+        this.track = track;
+    }
+
+    /**
+     * Snapshot of the music sent from Dart (prepare, play, preload and queue items),
+     * at its start, keeping the state and session. The image is loaded separately.
+     */
+    Music withTrack(Map<String, Object> args) {
+        Number duration = (Number) args.get("duration");
+        Boolean sp = (Boolean) args.get("showPrevious");
+        Boolean sn = (Boolean) args.get("showNext");
+
+        return new Music(
+            (String) args.get("id"),
+            (String) args.get("title"),
+            (String) args.get("artist"),
+            (String) args.get("album"),
+            null,
+            (String) args.get("imageUrl"),
+            duration != null ? duration.intValue() : 0,
+            0,
+            sp != null && sp,
+            sn != null && sn,
+            state,
+            session,
+            args);
+    }
+
+    /**
+     * Snapshot in the next state, or this one when the transition is not allowed
+     * (e.g. buffering events while paused).
+     */
+    Music withState(State next) {
+        if (next == state) {
+            return this;
+        }
+
+        if (!state.canMoveTo(next)) {
+            Log.v("MusicPlayerPlugin", "Ignoring state " + state + " -> " + next);
+            return this;
+        }
+
+        return new Music(id, title, artist, album, image, imageUrl, duration,
+            position, showPrevious, showNext, next, session, track);
+    }
+
+    Music withPosition(int position, int duration) {
+        if (position == this.position && duration == this.duration) {
+            return this;
+        }
+
+        return new Music(id, title, artist, album, image, imageUrl, duration,
+            position, showPrevious, showNext, state, session, track);
+    }
+
+    Music withImage(Bitmap image) {
+        if (image == this.image) {
+            return this;
+        }
+
+        return new Music(id, title, artist, album, image, imageUrl, duration,
+            position, showPrevious, showNext, state, session, track);
+    }
+
+    Music withNavigation(boolean showPrevious, boolean showNext) {
+        if (showPrevious == this.showPrevious && showNext == this.showNext) {
+            return this;
+        }
+
+        return new Music(id, title, artist, album, image, imageUrl, duration,
+            position, showPrevious, showNext, state, session, track);
+    }
+
+    Music withSession(MediaSessionCompat session) {
+        return new Music(id, title, artist, album, image, imageUrl, duration,
+            position, showPrevious, showNext, state, session, track);
+    }
 }
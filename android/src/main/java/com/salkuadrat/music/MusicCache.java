@@ -0,0 +1,536 @@
+package com.salkuadrat.music;
+
+import android.content.Context;
+import android.net.Uri;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Owns the caching proxy every track is played (and prefetched) through,
+ * its configuration (size, location, key) and its statistics.
+ *
+ * What is cached is known from the CacheIndex, the directory is not
+ * listed nor the files checked for lookups, statistics and eviction.
+ */
+public class MusicCache {
+
+    static final String KEY_URL = "url";
+    static final String KEY_PATH = "path";
+
+    // suffix of the files left by the previous (videocache) proxy
+    private static final String DOWNLOAD_SUFFIX = ".download";
+
+    interface FileNameGenerator {
+        String generate(String url);
+    }
+
+    /**
+     * Md5 of the url, keeping its extension (same names as the previous proxy,
+     * so its complete files are still used).
+     */
+    static class Md5FileNameGenerator implements FileNameGenerator {
+        private static final int MAX_EXTENSION_LENGTH = 4;
+
+        @Override
+        public String generate(String url) {
+            String extension = extension(url);
+            String name = md5(url);
+            return extension.isEmpty() ? name : name + "." + extension;
+        }
+
+        private static String extension(String url) {
+            int dot = url.lastIndexOf('.');
+            int slash = url.lastIndexOf('/');
+
+            return dot != -1 && dot > slash && dot + 2 + MAX_EXTENSION_LENGTH > url.length()
+                ? url.substring(dot + 1)
+                : "";
+        }
+
+        private static String md5(String text) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("MD5");
+                byte[] bytes = digest.digest(text.getBytes(Charset.forName("UTF-8")));
+                StringBuilder hex = new StringBuilder();
+
+                for (byte b : bytes) {
+                    hex.append(String.format("%02x", b));
+                }
+
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Ignore the query of the url, so signed / expiring urls
+     * of the same track share one cache file.
+     */
+    static class PathFileNameGenerator implements FileNameGenerator {
+        private final Md5FileNameGenerator md5 = new Md5FileNameGenerator();
+
+        @Override
+        public String generate(String url) {
+            Uri uri = Uri.parse(url);
+            String path = uri.buildUpon().clearQuery().fragment(null).build().toString();
+            return md5.generate(path);
+        }
+    }
+
+    private final Context context;
+    private MusicProxy proxy;
+    private MusicDownloads downloads;
+    private CacheIndex index;
+
+    private long maxBytes = 0;
+    private int maxFiles = 0;
+    private File directory;
+    private FileNameGenerator generator = new Md5FileNameGenerator();
+
+    // location and key to switch to once the proxy has no open file
+    private boolean pending = false;
+    private File pendingDirectory;
+    private FileNameGenerator pendingGenerator;
+
+    // parallel range requests per track, and their size
+    private int connections = 4;
+    private long segmentSize = RangeFetcher.DEFAULT_SEGMENT_SIZE;
+
+    private int hits = 0;
+    private int misses = 0;
+    private long bytesFromCache = 0;
+    private long bytesFromNetwork = 0;
+
+    // the track being played, to count the bytes it downloads
+    private String trackedUrl;
+    private long trackedBytes = 0;
+
+    MusicCache(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Load the index in the background, so the first lookups don't wait for it.
+     */
+    void load() {
+        Thread thread = new Thread(() -> {
+            synchronized (MusicCache.this) {
+                index();
+            }
+        }, "MusicCacheIndex");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start the proxy (server socket and thread) and load the index ahead of the first play.
+     * Called off the main thread.
+     */
+    void warmUp() {
+        synchronized (this) {
+            index();
+        }
+
+        try {
+            proxy();
+        } catch (IOException e) {
+            Log.v("MusicPlayerPlugin", "Cannot start the cache proxy: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Change the cache configuration. The limits are applied now, the location and key
+     * once the proxy has no open file (e.g. after the playing track), so playback
+     * is not interrupted.
+     */
+    synchronized void configure(Long maxBytes, Integer maxFiles, String directory, String key) {
+        this.maxBytes = maxBytes != null ? maxBytes : 0;
+        this.maxFiles = maxFiles != null ? maxFiles : 0;
+        this.pendingDirectory = directory != null ? new File(directory) : null;
+        this.pendingGenerator = KEY_PATH.equals(key)
+            ? new PathFileNameGenerator()
+            : new Md5FileNameGenerator();
+        this.pending = true;
+
+        switchWhenIdle();
+        trim();
+    }
+
+    /**
+     * Switch to the configured location and key when no file is open,
+     * the open ones are recorded in the index of the previous directory.
+     */
+    private synchronized void switchWhenIdle() {
+        if (!pending || (proxy != null && proxy.hasOpenFiles())) {
+            return;
+        }
+
+        pending = false;
+        directory = pendingDirectory;
+        generator = pendingGenerator;
+        pendingDirectory = null;
+        pendingGenerator = null;
+        closeIndex();
+    }
+
+    /**
+     * Download each track with up to `connections` parallel range requests of `segmentSize`.
+     * The bytes needed by the player are always requested first.
+     */
+    synchronized void configureDownloads(Integer connections, Long segmentSize) {
+        if (connections != null) {
+            this.connections = connections;
+        }
+
+        if (segmentSize != null) {
+            this.segmentSize = segmentSize;
+        }
+
+        if (proxy != null) {
+            proxy.configureDownloads(this.connections, this.segmentSize);
+        }
+    }
+
+    synchronized MusicProxy proxy() throws IOException {
+        if (proxy == null) {
+            proxy = new MusicProxy(new MusicProxy.Storage() {
+                @Override
+                public File file(String url) {
+                    return MusicCache.this.file(url);
+                }
+
+                @Override
+                public void onComplete(String url, CacheFile file) {
+                    record(url, file);
+                    trim();
+                }
+
+                @Override
+                public void onClosed(String url, CacheFile file) {
+                    record(url, file);
+                    switchWhenIdle();
+                }
+            }, new RangeFetcher(connections, segmentSize));
+        }
+
+        return proxy;
+    }
+
+    synchronized File directory() {
+        if (directory == null) {
+            directory = context.getExternalCacheDir();
+        }
+
+        if (directory == null) {
+            directory = context.getCacheDir();
+        }
+
+        return directory;
+    }
+
+    // called with the lock held
+    private CacheIndex index() {
+        if (index == null) {
+            index = new CacheIndex(directory());
+            index.load();
+        }
+
+        return index;
+    }
+
+    private synchronized CacheIndex.Entry entry(String url) {
+        return index().get(generator.generate(url));
+    }
+
+    // the state of a cache file, from the proxy
+    private synchronized void record(String url, CacheFile file) {
+        if (!file.file.getParentFile().equals(directory())) {
+            // from before configure()
+            return;
+        }
+
+        boolean complete = file.isComplete();
+        index().put(file.file.getName(), url, file.length(), complete,
+            file.ranges(), System.currentTimeMillis());
+    }
+
+    /**
+     * Url to play: the cache file when complete, the proxy otherwise
+     * (or the url itself when the proxy cannot start).
+     */
+    String getProxyUrl(String url) {
+        switchWhenIdle();
+        File downloaded = downloaded(url);
+
+        if (downloaded != null) {
+            // played from the downloads, without the proxy
+            return downloaded.getAbsolutePath();
+        }
+
+        CacheIndex.Entry entry = entry(url);
+
+        if (entry != null && entry.complete) {
+            File file = file(url);
+
+            if (file.exists()) {
+                return file.getAbsolutePath();
+            }
+
+            // deleted by the system (low storage) or the user
+            forget(entry);
+        }
+
+        try {
+            return proxy().getProxyUrl(url);
+        } catch (IOException e) {
+            Log.v("MusicPlayerPlugin", "Cannot start the cache proxy: " + e.getMessage());
+            return url;
+        }
+    }
+
+    boolean isCached(String url) {
+        if (downloaded(url) != null) {
+            return true;
+        }
+
+        CacheIndex.Entry entry = entry(url);
+        return entry != null && entry.complete;
+    }
+
+    /**
+     * Completely downloaded tracks are played (and counted) as cached.
+     */
+    synchronized void setDownloads(MusicDownloads downloads) {
+        this.downloads = downloads;
+    }
+
+    private File downloaded(String url) {
+        MusicDownloads downloads;
+
+        synchronized (this) {
+            downloads = this.downloads;
+        }
+
+        return downloads != null ? downloads.file(url) : null;
+    }
+
+    /**
+     * Bytes of the url available in the cache, complete or not.
+     */
+    long cachedBytes(String url) {
+        File downloaded = downloaded(url);
+
+        if (downloaded != null) {
+            return downloaded.length();
+        }
+
+        MusicProxy proxy = currentProxy();
+        long cached = proxy != null ? proxy.cachedBytes(url) : -1;
+
+        if (cached >= 0) {
+            return cached;
+        }
+
+        CacheIndex.Entry entry = entry(url);
+        return entry != null ? entry.bytes() : 0;
+    }
+
+    /**
+     * Bytes of the url available from `position` without a gap.
+     */
+    long cachedBytes(String url, long position) {
+        File downloaded = downloaded(url);
+
+        if (downloaded != null) {
+            return Math.max(0, downloaded.length() - position);
+        }
+
+        MusicProxy proxy = currentProxy();
+        long available = proxy != null ? proxy.available(url, position) : -1;
+
+        if (available >= 0) {
+            return available;
+        }
+
+        CacheIndex.Entry entry = entry(url);
+        return entry != null ? entry.available(position) : 0;
+    }
+
+    private synchronized MusicProxy currentProxy() {
+        return proxy;
+    }
+
+    private synchronized File file(String url) {
+        return new File(directory(), generator.generate(url));
+    }
+
+    /**
+     * Called when a url starts playing, to keep hit / miss and bytes statistics.
+     * Bytes from cache are the bytes available when playback starts,
+     * bytes from network are the bytes added to the cache while it plays.
+     *
+     * @return whether the url is completely cached
+     */
+    synchronized boolean onPlay(String url) {
+        settle();
+
+        long cached = cachedBytes(url);
+        boolean hit = isCached(url);
+
+        if (hit) {
+            hits++;
+        } else {
+            misses++;
+        }
+
+        bytesFromCache += cached;
+        trackedUrl = url;
+        trackedBytes = cached;
+        index().touch(generator.generate(url), System.currentTimeMillis());
+        trim();
+        return hit;
+    }
+
+    /**
+     * Called when a preview starts playing: keeps its file recently used,
+     * but leaves the statistics (and the tracked url) to the main player.
+     *
+     * @return whether the url is completely cached
+     */
+    synchronized boolean onPreview(String url) {
+        index().touch(generator.generate(url), System.currentTimeMillis());
+        return isCached(url);
+    }
+
+    private void settle() {
+        if (trackedUrl != null) {
+            long cached = cachedBytes(trackedUrl);
+            bytesFromNetwork += Math.max(0, cached - trackedBytes);
+            trackedBytes = cached;
+        }
+    }
+
+    /**
+     * Delete the least recently used files above the size / count limits,
+     * except the ones being played or downloaded.
+     */
+    private synchronized void trim() {
+        if (maxBytes <= 0 && maxFiles <= 0) {
+            return;
+        }
+
+        CacheIndex index = index();
+
+        for (CacheIndex.Entry entry : index.leastRecentlyUsed()) {
+            boolean over = (maxBytes > 0 && index.bytes() > maxBytes)
+                || (maxFiles > 0 && index.count() > maxFiles);
+
+            if (!over) {
+                break;
+            }
+
+            File file = new File(directory(), entry.name);
+
+            if (proxy != null && proxy.isOpen(file)) {
+                continue;
+            }
+
+            file.delete();
+            CacheFile.index(file).delete();
+            index.remove(entry.name);
+        }
+    }
+
+    private synchronized void forget(CacheIndex.Entry entry) {
+        File file = new File(directory(), entry.name);
+        CacheFile.index(file).delete();
+        index().remove(entry.name);
+    }
+
+    synchronized Map<String, Object> getStats() {
+        settle();
+
+        int total = hits + misses;
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("directory", directory().getAbsolutePath());
+        stats.put("bytes", index().bytes());
+        stats.put("files", index().count());
+        stats.put("maxBytes", maxBytes);
+        stats.put("maxFiles", maxFiles);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRatio", total > 0 ? (double) hits / total : 0.0);
+        stats.put("bytesFromCache", bytesFromCache);
+        stats.put("bytesFromNetwork", bytesFromNetwork);
+        return stats;
+    }
+
+    synchronized boolean evict(String url) {
+        File file = file(url);
+        File download = new File(file.getPath() + DOWNLOAD_SUFFIX);
+        boolean deleted = file.delete();
+        CacheFile.index(file).delete();
+        index().remove(file.getName());
+        return download.delete() || deleted;
+    }
+
+    void clear() {
+        // the open files would be written again
+        close();
+
+        synchronized (this) {
+            File[] files = directory().listFiles();
+
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isFile() && !file.getName().equals(CacheIndex.LOG_NAME)) {
+                        file.delete();
+                    }
+                }
+            }
+
+            index().clear();
+            trackedUrl = null;
+            trackedBytes = 0;
+        }
+    }
+
+    /**
+     * Stop the proxy. It reports its open files when they are closed,
+     * so it is not stopped with the lock held.
+     */
+    void close() {
+        MusicProxy proxy;
+
+        synchronized (this) {
+            proxy = this.proxy;
+            this.proxy = null;
+        }
+
+        if (proxy != null) {
+            proxy.shutdown();
+        }
+
+        synchronized (this) {
+            closeIndex();
+        }
+    }
+
+    // called with the lock held
+    private void closeIndex() {
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+    }
+}
@@ -0,0 +1,594 @@
+package com.salkuadrat.music;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads complete tracks for offline playback, out of the cache (never evicted).
+ *
+ * Each download is kept as a partial file (PART_SUFFIX) with its state in an info file
+ * (INFO_SUFFIX), so it resumes with a range request after a pause, an error
+ * or a restart. Completed files are checked (length, checksum) before being kept.
+ */
+public class MusicDownloads {
+
+    // same values as DownloadState in Dart
+    static final int QUEUED = 0;
+    static final int RUNNING = 1;
+    static final int PAUSED = 2;
+    static final int COMPLETED = 3;
+    static final int FAILED = 4;
+    static final int CANCELLED = 5;
+
+    // called on the main thread
+    interface Listener {
+        void onDownload(Map<String, Object> download);
+    }
+
+    private static final String DIRECTORY = "downloads";
+    private static final String PART_SUFFIX = ".part";
+    private static final String INFO_SUFFIX = ".info";
+
+    private static final int TIMEOUT = 15000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // minimum time between two progress events of a download (ms)
+    private static final long PROGRESS_INTERVAL = 500;
+
+    private static class Download {
+        String url;
+        String id;
+        String checksum;
+        String algorithm;
+        String etag;
+        long length = -1;
+        long total = -1;
+        volatile long bytes = 0;
+        int state = QUEUED;
+        String error;
+
+        File file;
+        Future<?> task;
+        // incremented when the download is stopped, so its running task knows
+        volatile int generation = 0;
+        long notified = 0;
+    }
+
+    private final File directory;
+    private final Listener listener;
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor executor;
+    private final MusicCache.FileNameGenerator generator = new MusicCache.Md5FileNameGenerator();
+    private final Map<String, Download> downloads = new LinkedHashMap<>();
+    private boolean loaded = false;
+
+    MusicDownloads(Context context, Listener listener) {
+        this.directory = new File(context.getApplicationContext().getFilesDir(), DIRECTORY);
+        this.listener = listener;
+        this.executor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "MusicDownloads");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * How many tracks are downloaded at the same time.
+     */
+    synchronized void setConcurrency(int concurrency) {
+        concurrency = Math.max(1, concurrency);
+
+        if (concurrency > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(concurrency);
+            executor.setCorePoolSize(concurrency);
+        } else {
+            executor.setCorePoolSize(concurrency);
+            executor.setMaximumPoolSize(concurrency);
+        }
+    }
+
+    /**
+     * Queue the download of the url (nothing when it is already queued or downloaded).
+     *
+     * @param checksum  expected hex digest of the file, or null
+     * @param algorithm digest algorithm of the checksum (e.g. MD5, SHA-256)
+     * @param length    expected length of the file, or -1
+     */
+    synchronized void enqueue(String url, String id, String checksum, String algorithm,
+                              long length) {
+        load();
+        Download download = downloads.get(url);
+
+        if (download != null) {
+            if (download.state == PAUSED || download.state == FAILED) {
+                start(download);
+            }
+            return;
+        }
+
+        download = new Download();
+        download.url = url;
+        download.id = id;
+        download.checksum = checksum != null ? checksum.toLowerCase() : null;
+        download.algorithm = algorithm != null ? algorithm : "SHA-256";
+        download.length = length;
+        download.file = new File(directory, generator.generate(url));
+        downloads.put(url, download);
+        start(download);
+    }
+
+    synchronized void pause(String url) {
+        load();
+        Download download = downloads.get(url);
+
+        if (download == null || (download.state != QUEUED && download.state != RUNNING)) {
+            return;
+        }
+
+        stopTask(download);
+        download.state = PAUSED;
+        save(download);
+        notify(download, true);
+    }
+
+    synchronized void resume(String url) {
+        load();
+        Download download = downloads.get(url);
+
+        if (download != null && (download.state == PAUSED || download.state == FAILED)) {
+            start(download);
+        }
+    }
+
+    /**
+     * Stop the download and delete its files, completed or not.
+     */
+    synchronized boolean cancel(String url) {
+        load();
+        Download download = downloads.remove(url);
+
+        if (download == null) {
+            return false;
+        }
+
+        stopTask(download);
+        download.file.delete();
+        part(download).delete();
+        info(download).delete();
+        download.state = CANCELLED;
+        notify(download, true);
+        return true;
+    }
+
+    synchronized List<Map<String, Object>> getAll() {
+        load();
+        List<Map<String, Object>> list = new ArrayList<>();
+
+        for (Download download : downloads.values()) {
+            list.add(toMap(download));
+        }
+
+        return list;
+    }
+
+    /**
+     * The downloaded file of the url, or null when it is not completely downloaded.
+     */
+    synchronized File file(String url) {
+        load();
+        Download download = downloads.get(url);
+
+        if (download == null || download.state != COMPLETED || !download.file.exists()) {
+            return null;
+        }
+
+        return download.file;
+    }
+
+    /**
+     * Stop the running downloads, they resume on the next start.
+     */
+    synchronized void close() {
+        for (Download download : downloads.values()) {
+            download.generation++;
+        }
+
+        executor.shutdownNow();
+    }
+
+    private void start(Download download) {
+        stopTask(download);
+        download.state = QUEUED;
+        download.error = null;
+        save(download);
+        notify(download, true);
+        submit(download);
+    }
+
+    private void submit(Download download) {
+        int generation = download.generation;
+        download.task = executor.submit(() -> run(download, generation));
+    }
+
+    private void stopTask(Download download) {
+        download.generation++;
+
+        if (download.task != null) {
+            download.task.cancel(false);
+            download.task = null;
+        }
+    }
+
+    // read the downloads of the previous runs, and resume the unfinished ones
+    private void load() {
+        if (loaded) {
+            return;
+        }
+
+        loaded = true;
+        File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (!file.getName().endsWith(INFO_SUFFIX)) {
+                continue;
+            }
+
+            Download download = read(file);
+
+            if (download == null) {
+                file.delete();
+                continue;
+            }
+
+            downloads.put(download.url, download);
+
+            if (download.state == QUEUED || download.state == RUNNING) {
+                download.state = QUEUED;
+                submit(download);
+            }
+        }
+    }
+
+    private void run(Download download, int generation) {
+        synchronized (this) {
+            if (download.generation != generation) {
+                return;
+            }
+
+            download.state = RUNNING;
+        }
+
+        notify(download, true);
+
+        try {
+            if (fetch(download, generation)) {
+                verify(download);
+                complete(download, generation);
+            }
+        } catch (IOException e) {
+            Log.v("MusicDownloads", "Cannot download " + download.url + ": " + e.getMessage());
+
+            synchronized (this) {
+                if (download.generation != generation) {
+                    return;
+                }
+
+                download.state = FAILED;
+                download.error = e.getMessage();
+                save(download);
+            }
+
+            notify(download, true);
+        }
+    }
+
+    /**
+     * Download the rest of the partial file, returns false when stopped before the end.
+     */
+    private boolean fetch(Download download, int generation) throws IOException {
+        File part = part(download);
+        File parent = part.getParentFile();
+
+        if (parent != null && !parent.exists() && !parent.mkdirs() && !parent.exists()) {
+            throw new IOException("Cannot create " + parent);
+        }
+
+        long offset = part.exists() ? part.length() : 0;
+        HttpURLConnection connection = (HttpURLConnection) new URL(download.url).openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+
+        if (offset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+
+            if (download.etag != null && !download.etag.startsWith("W/")) {
+                // the whole file is sent again when it changed on the server
+                connection.setRequestProperty("If-Range", download.etag);
+            }
+        }
+
+        try {
+            int code = connection.getResponseCode();
+
+            if (code == 416 && offset > 0 && offset == download.total) {
+                // already complete
+                return true;
+            }
+
+            if (code == 416) {
+                // the partial file is not part of this content anymore
+                part.delete();
+                throw new IOException("Range not satisfiable, restarting from the beginning");
+            }
+
+            if (code >= 400) {
+                throw new IOException("HTTP " + code);
+            }
+
+            long total;
+
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                total = RangeFetcher.parseTotal(connection.getHeaderField("Content-Range"));
+            } else {
+                // ranges not supported or content changed, start again
+                offset = 0;
+                total = parseLong(connection.getHeaderField("Content-Length"));
+            }
+
+            if (download.length > 0 && total > 0 && total != download.length) {
+                throw new IOException("Length " + total + " instead of " + download.length);
+            }
+
+            synchronized (this) {
+                download.total = total;
+                download.bytes = offset;
+                download.etag = connection.getHeaderField("ETag");
+                save(download);
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+
+            try (InputStream input = connection.getInputStream();
+                 OutputStream output = new FileOutputStream(part, offset > 0)) {
+                int read;
+
+                while ((read = input.read(buffer)) != -1) {
+                    if (download.generation != generation) {
+                        return false;
+                    }
+
+                    output.write(buffer, 0, read);
+                    download.bytes += read;
+                    notify(download, false);
+                }
+            }
+
+            return download.generation == generation;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void verify(Download download) throws IOException {
+        File part = part(download);
+        long expected = download.length > 0 ? download.length : download.total;
+
+        if (expected > 0 && part.length() != expected) {
+            // truncated, the next attempt resumes it
+            throw new IOException("Incomplete: " + part.length() + " of " + expected + " bytes");
+        }
+
+        if (download.checksum == null) {
+            return;
+        }
+
+        String checksum = digest(part, download.algorithm);
+
+        if (!download.checksum.equals(checksum)) {
+            part.delete();
+            throw new IOException("Checksum mismatch: " + checksum);
+        }
+    }
+
+    private void complete(Download download, int generation) throws IOException {
+        synchronized (this) {
+            if (download.generation != generation) {
+                return;
+            }
+
+            if (!part(download).renameTo(download.file)) {
+                throw new IOException("Cannot move to " + download.file);
+            }
+
+            download.state = COMPLETED;
+            download.bytes = download.file.length();
+            download.total = download.bytes;
+            save(download);
+        }
+
+        notify(download, true);
+    }
+
+    private static String digest(File file, String algorithm) throws IOException {
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unknown checksum algorithm " + algorithm);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        try (InputStream input = new FileInputStream(file)) {
+            int read;
+
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+
+        return hex.toString();
+    }
+
+    private void notify(Download download, boolean force) {
+        long now = SystemClock.elapsedRealtime();
+
+        if (!force && now - download.notified < PROGRESS_INTERVAL) {
+            return;
+        }
+
+        download.notified = now;
+        Map<String, Object> map;
+
+        synchronized (this) {
+            map = toMap(download);
+        }
+
+        main.post(() -> listener.onDownload(map));
+    }
+
+    private static Map<String, Object> toMap(Download download) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("url", download.url);
+        map.put("id", download.id);
+        map.put("state", download.state);
+        map.put("bytes", download.bytes);
+        map.put("total", download.total);
+        map.put("error", download.error);
+        map.put("path", download.state == COMPLETED ? download.file.getAbsolutePath() : null);
+        return map;
+    }
+
+    private File part(Download download) {
+        return new File(download.file.getPath() + PART_SUFFIX);
+    }
+
+    private File info(Download download) {
+        return new File(download.file.getPath() + INFO_SUFFIX);
+    }
+
+    // called with the lock held
+    private void save(Download download) {
+        Properties properties = new Properties();
+        properties.setProperty("url", download.url);
+        properties.setProperty("state", String.valueOf(download.state));
+        properties.setProperty("length", String.valueOf(download.length));
+        properties.setProperty("total", String.valueOf(download.total));
+        properties.setProperty("algorithm", download.algorithm);
+
+        if (download.id != null) {
+            properties.setProperty("id", download.id);
+        }
+
+        if (download.checksum != null) {
+            properties.setProperty("checksum", download.checksum);
+        }
+
+        if (download.etag != null) {
+            properties.setProperty("etag", download.etag);
+        }
+
+        if (download.error != null) {
+            properties.setProperty("error", download.error);
+        }
+
+        File info = info(download);
+        File parent = info.getParentFile();
+
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        try (OutputStream output = new FileOutputStream(info)) {
+            properties.store(output, null);
+        } catch (IOException e) {
+            Log.v("MusicDownloads", "Cannot save " + info + ": " + e.getMessage());
+        }
+    }
+
+    private Download read(File info) {
+        Properties properties = new Properties();
+
+        try (InputStream input = new FileInputStream(info)) {
+            properties.load(input);
+        } catch (IOException e) {
+            return null;
+        }
+
+        String url = properties.getProperty("url");
+
+        if (url == null) {
+            return null;
+        }
+
+        String name = info.getName();
+        Download download = new Download();
+        download.url = url;
+        download.id = properties.getProperty("id");
+        download.checksum = properties.getProperty("checksum");
+        download.algorithm = properties.getProperty("algorithm", "SHA-256");
+        download.etag = properties.getProperty("etag");
+        download.error = properties.getProperty("error");
+        download.length = parseLong(properties.getProperty("length"));
+        download.total = parseLong(properties.getProperty("total"));
+        download.state = Math.max(QUEUED, (int) parseLong(properties.getProperty("state")));
+        download.file = new File(directory, name.substring(0, name.length() - INFO_SUFFIX.length()));
+
+        File part = part(download);
+        download.bytes = download.state == COMPLETED
+            ? download.file.length()
+            : (part.exists() ? part.length() : 0);
+
+        if (download.state == COMPLETED && !download.file.exists()) {
+            // deleted from outside, download it again
+            download.state = QUEUED;
+        }
+
+        return download;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value != null ? Long.parseLong(value.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
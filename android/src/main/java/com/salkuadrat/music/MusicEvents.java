@@ -0,0 +1,143 @@
+package com.salkuadrat.music;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import io.flutter.plugin.common.BinaryMessenger;
+
+/**
+ * Streams playback events to Dart as fixed size binary frames.
+ * Every frame is {@link #FRAME_SIZE} bytes, little endian:
+ * int16 type, int16 player, int32 arg, int64 value, int64 timestamp (System.nanoTime,
+ * the monotonic clock read by Timeline.now in Dart).
+ * Events sent in the same looper turn are batched into one message,
+ * for all the players (see forPlayer).
+ */
+public class MusicEvents implements Runnable {
+
+    static final String CHANNEL = "salkuadrat/musicplayer/events";
+    static final int FRAME_SIZE = 24;
+
+    static final int LOADING = 1;
+    static final int POSITION = 2;
+    static final int DURATION = 3;
+    static final int PLAYING = 4;
+    static final int PAUSED = 5;
+    static final int STOPPED = 6;
+    static final int COMPLETED = 7;
+    static final int PLAY_NEXT = 8;
+    static final int PLAY_PREVIOUS = 9;
+    // value: position (ms), arg: playback speed (x1000)
+    static final int ANCHOR = 10;
+    // value: 1 when playback waits for data, 0 when it continues
+    static final int BUFFERING = 11;
+
+    // the main player, the preview players have their own id
+    static final int MAIN_PLAYER = 0;
+
+    private final BinaryMessenger messenger;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // the events of the other players are batched by this one
+    private final MusicEvents root;
+    private final int player;
+
+    private ByteBuffer pending = ByteBuffer
+        .allocate(FRAME_SIZE * 16)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    private boolean scheduled = false;
+
+    MusicEvents(BinaryMessenger messenger) {
+        this.messenger = messenger;
+        this.root = this;
+        this.player = MAIN_PLAYER;
+    }
+
+    private MusicEvents(MusicEvents root, int player) {
+        this.messenger = root.messenger;
+        this.root = root;
+        this.player = player;
+    }
+
+    /**
+     * Events of another player, sent with the ones of this player.
+     */
+    MusicEvents forPlayer(int player) {
+        return new MusicEvents(this, player);
+    }
+
+    void send(int type) {
+        send(type, 0, 0);
+    }
+
+    void send(int type, long value) {
+        send(type, 0, value);
+    }
+
+    void send(int type, int arg, long value) {
+        send(type, arg, value, System.nanoTime());
+    }
+
+    /**
+     * @param time when the value was taken (System.nanoTime), e.g. a position anchor
+     */
+    void send(int type, int arg, long value, long time) {
+        root.write(player, type, arg, value, time);
+    }
+
+    private synchronized void write(int player, int type, int arg, long value, long time) {
+        if (pending.remaining() < FRAME_SIZE) {
+            ByteBuffer buffer = ByteBuffer
+                .allocate(pending.capacity() * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+            pending.flip();
+            buffer.put(pending);
+            pending = buffer;
+        }
+
+        pending.putShort((short) type)
+            .putShort((short) player)
+            .putInt(arg)
+            .putLong(value)
+            .putLong(time);
+
+        if (!scheduled) {
+            scheduled = true;
+            handler.post(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer message;
+
+        synchronized (this) {
+            scheduled = false;
+
+            if (pending.position() == 0) {
+                return;
+            }
+
+            // platform messages have to be direct buffers,
+            // the message size is taken from its position
+            message = ByteBuffer
+                .allocateDirect(pending.position())
+                .order(ByteOrder.LITTLE_ENDIAN);
+            pending.flip();
+            message.put(pending);
+            pending.clear();
+        }
+
+        messenger.send(CHANNEL, message);
+    }
+
+    void close() {
+        synchronized (this) {
+            handler.removeCallbacks(this);
+            scheduled = false;
+            pending.clear();
+        }
+    }
+}
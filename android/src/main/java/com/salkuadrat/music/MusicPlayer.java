@@ -1,70 +1,385 @@
 package com.salkuadrat.music;
 
 import android.app.Activity;
-import android.media.AudioAttributes;
-import android.media.MediaPlayer;
-import android.os.PowerManager;
-
-import com.danikula.videocache.HttpProxyCacheServer;
+import android.content.Context;
+import android.media.AudioManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
 
-import io.flutter.plugin.common.MethodChannel;
+/**
+ * All playback engine calls run on a dedicated playback thread: commands are queued
+ * on its looper (in order) and return right away, engine callbacks are delivered
+ * on the same looper, and the listener is called back on the main thread.
+ */
+public class MusicPlayer implements PlaybackEngine.Callback {
+
+    // called on the main thread
+    interface Listener {
+        void onPositionUpdated();
+
+        // the preloaded track took over without gap
+        void onNextStarted();
+
+        // return true when playback continues with another track
+        boolean onCompleted();
+
+        void onError(String message);
+
+        void onBuffering(boolean buffering);
+    }
+
+    // re-anchor the position when it drifts this far (ms) from the extrapolated one
+    private static final int DRIFT = 40;
+
+    // how often / how long to look for the first audible frame after start
+    private static final int FIRST_AUDIO_INTERVAL = 10;
+    private static final int FIRST_AUDIO_TIMEOUT = 10000;
+
+    // how often the cache is checked while waiting for a buffer watermark
+    private static final int WATERMARK_INTERVAL = 250;
 
-public class MusicPlayer implements MediaPlayer.OnPreparedListener,
-    MediaPlayer.OnCompletionListener {
+    // shortest crossfade worth doing (ms), and how late it may start
+    private static final int MIN_CROSSFADE = 500;
+    private static final int CROSSFADE_TOLERANCE = 100;
 
-    private final MediaPlayer player = new MediaPlayer();
+    // bytes cached after a seek target to seek right away, even with a seek in flight
+    private static final long SEEK_CACHED_BYTES = 64 * 1024;
 
-    private Timer timer;
-    private TimerTask task;
+    private PlaybackEngine player;
+    private String url;
+
+    // second player used to prepare the upcoming track in the background,
+    // chained to the current one with setNext for gapless playback. Null until the first preload
+    private PlaybackEngine nextPlayer;
+    private String nextUrl;
+    private boolean prepared = false;
+    private boolean nextPrepared = false;
+
+    // engine type (PlaybackEngine.MEDIA_PLAYER or CODEC) and buffering of the codec engine
+    private int engine = PlaybackEngine.MEDIA_PLAYER;
+    private int engineBufferMs = 2000;
+    private int engineStartMs = 100;
+    private final PlaybackEngine.Timestamp timestamp = new PlaybackEngine.Timestamp();
+
+    // crossfade duration (ms), 0 to chain tracks gaplessly instead.
+    // While fading, preloading waits for the outgoing player to be recycled.
+    private int crossfadeMs = 0;
+    private final Crossfade crossfade;
+    private final Runnable crossfadeCheck;
+    private String pendingPreload;
+
+    // seek coalescing: while a seek is in flight, only the latest target (-1 for none)
+    // waits for it. Scrubbing seeks are fast (sync frames) until the release.
+    private boolean seekInFlight = false;
+    private int pendingSeek = -1;
+    private boolean pendingFast = false;
+    private boolean scrubbing = false;
+
+    // position of a restored session (-1 for none): once prepared,
+    // the track is seeked there and stays paused, unless resumed meanwhile
+    private int restorePosition = -1;
+    private boolean restorePlay = false;
 
     private final Activity context;
-    private final MethodChannel channel;
-    private final Runnable onPositionUpdated;
-    private HttpProxyCacheServer proxy;
+    private final MusicEvents events;
+    private final Listener listener;
+    private final Runnable tick;
+    private final Runnable positionUpdated;
+    private final Runnable firstAudioCheck;
+    private final MusicCache cache;
+    private final MusicStats stats;
+    // previews stay out of the cache statistics
+    private final boolean preview;
+    private long firstAudioDeadline = 0;
+
+    // the playback thread, its looper is the command queue.
+    // Null when the looper is shared with other players.
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final MediaPlayerPool pool;
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private final PositionTicker ticker;
+
+    // shared by both engines (and the ones of another engine type),
+    // so a Visualizer attached to it follows the playback across tracks
+    private final int audioSessionId;
+
+    // read from the main thread
+    private volatile int currentPosition = 0;
+    private volatile int currentDuration = 0;
+
+    // opt-in buffer watermarks (bytes available in the cache ahead of the position)
+    // to start playing, and to resume after a stall
+    private final Runnable watermarkCheck;
+    private long startWatermark = 0;
+    private long resumeWatermark = 0;
+    private float bytesPerMillis = 40;
+    private long watermark = 0;
+    private boolean waiting = false;
+    private boolean buffering = false;
+
+    // last position anchor sent to Dart, which extrapolates from it
+    private long anchorPosition = 0;
+    private long anchorTime = 0;
+    private float anchorSpeed = 0;
+    private boolean stalled = false;
 
-    MusicPlayer(MethodChannel channel, Activity context, Runnable onPositionUpdated) {
-        this.channel = channel;
+    MusicPlayer(MusicEvents events, Activity context, MusicCache cache, MusicStats stats,
+                Listener listener) {
+        this(events, context, cache, stats, listener, null, null, false);
+    }
+
+    /**
+     * @param looper  playback looper shared with other players, null for a thread of its own
+     * @param pool    MediaPlayers of the MEDIA_PLAYER engine, used on `looper`
+     * @param preview whether it plays previews, not counted in the cache statistics
+     */
+    MusicPlayer(MusicEvents events, Activity context, MusicCache cache, MusicStats stats,
+                Listener listener, Looper looper, MediaPlayerPool pool, boolean preview) {
+        this.events = events;
+        this.cache = cache;
+        this.stats = stats;
         this.context = context;
-        this.onPositionUpdated = onPositionUpdated;
-
-        AudioAttributes audioAttributes = new AudioAttributes.Builder()
-            .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-            .setUsage(AudioAttributes.USAGE_MEDIA)
-            .build();
-        player.setAudioAttributes(audioAttributes);
-
-        // Make sure the media player will acquire a wake-lock while playing.
-        // If we don't do that, the CPU might go to sleep while the
-        // song is playing, causing playback to stop.
-        player.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
-        player.reset();
+        this.listener = listener;
+        this.pool = pool;
+        this.preview = preview;
+
+        AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        this.audioSessionId = audioManager.generateAudioSessionId();
+
+        if (looper == null) {
+            this.thread = new HandlerThread("MusicPlayer", Process.THREAD_PRIORITY_AUDIO);
+            this.thread.start();
+            looper = thread.getLooper();
+        } else {
+            this.thread = null;
+        }
+
+        this.handler = new Handler(looper);
+        this.ticker = new PositionTicker(looper);
+        this.positionUpdated = listener::onPositionUpdated;
+        this.tick = () -> {
+            if (player.isPlaying()) {
+                //Log.v("MusicPlayer", "update position...");
+                currentPosition = player.getCurrentPosition();
+                checkDrift();
+                main.post(positionUpdated);
+            }
+        };
+        this.firstAudioCheck = new Runnable() {
+            @Override
+            public void run() {
+                if (stats.hasFirstAudio()) {
+                    return;
+                }
+
+                if (player.isPlaying() && player.getCurrentPosition() > 0) {
+                    stats.onFirstAudio();
+                } else if (SystemClock.elapsedRealtime() < firstAudioDeadline) {
+                    handler.postDelayed(this, FIRST_AUDIO_INTERVAL);
+                }
+            }
+        };
+        this.watermarkCheck = new Runnable() {
+            @Override
+            public void run() {
+                if (!waiting) {
+                    return;
+                }
+
+                if (hasWatermark(watermark, player.getCurrentPosition())) {
+                    startBuffered();
+                } else {
+                    handler.postDelayed(this, WATERMARK_INTERVAL);
+                }
+            }
+        };
+
+        this.crossfade = new Crossfade(handler, new Crossfade.Listener() {
+            @Override
+            public void onMidpoint() {
+                onCrossfadeMidpoint();
+            }
+
+            @Override
+            public void onFinished() {
+                onCrossfadeFinished();
+            }
+        });
+        this.crossfadeCheck = this::checkCrossfade;
+
+        // created on the playback thread, so its callbacks are delivered there
+        // (the second player on the first preload, previews never preload)
+        handler.post(() -> player = createPlayer());
+    }
+
+    /**
+     * The position ticker, running on the playback thread.
+     */
+    PositionTicker ticker() {
+        return ticker;
+    }
+
+    /**
+     * Set the buffer watermarks, in bytes available in the cache
+     * ahead of the playback position. 0 disables the watermark.
+     *
+     * @param bitrate estimated bitrate (kbps) to locate the position in the file
+     */
+    void setWatermarks(long start, long resume, int bitrate) {
+        handler.post(() -> handleSetWatermarks(start, resume, bitrate));
+    }
+
+    private void handleSetWatermarks(long start, long resume, int bitrate) {
+        startWatermark = Math.max(0, start);
+        resumeWatermark = Math.max(0, resume);
+
+        if (bitrate > 0) {
+            bytesPerMillis = bitrate / 8f;
+        }
+    }
+
+    private boolean hasWatermark(long watermark, int position) {
+        if (watermark <= 0 || url == null || cache.isCached(url)) {
+            return true;
+        }
+
+        // bytes after the position, ranges cached elsewhere do not help
+        long offset = (long) (position * bytesPerMillis);
+        return cache.cachedBytes(url, offset) >= watermark;
+    }
+
+    private void waitForWatermark(long watermark) {
+        this.watermark = watermark;
+        waiting = true;
+        setBuffering(true);
+        handler.removeCallbacks(watermarkCheck);
+        handler.postDelayed(watermarkCheck, WATERMARK_INTERVAL);
+    }
+
+    private void startBuffered() {
+        waiting = false;
+        stalled = false;
+        stats.onBufferingEnd();
+        setBuffering(false);
+        player.start();
+        checkFirstAudio();
+        startTask();
+        events.send(MusicEvents.PLAYING);
+        anchor();
+        scheduleCrossfade();
+    }
+
+    private void stopWaiting() {
+        waiting = false;
+        handler.removeCallbacks(watermarkCheck);
+        setBuffering(false);
+    }
+
+    private void setBuffering(boolean buffering) {
+        if (this.buffering != buffering) {
+            this.buffering = buffering;
+            events.send(MusicEvents.BUFFERING, buffering ? 1 : 0);
+            main.post(() -> listener.onBuffering(buffering));
+        }
+    }
+
+    private PlaybackEngine createPlayer() {
+        PlaybackEngine player = engine == PlaybackEngine.CODEC
+            ? new CodecPlaybackEngine(context, this, engineBufferMs, engineStartMs)
+            : new MediaPlayerEngine(context, this, pool);
+
+        if (audioSessionId > 0) {
+            player.setAudioSessionId(audioSessionId);
+        }
+
+        return player;
+    }
 
-        // we want the media player to notify us when it's ready preparing,
-        // and when it's done playing
-        //player.setOnInfoListener(this);
-        player.setOnPreparedListener(this);
-        player.setOnCompletionListener(this);
-        //player.setOnBufferingUpdateListener(this);
+    /**
+     * Audio session of the playback, 0 when none could be generated.
+     */
+    int getAudioSessionId() {
+        return Math.max(audioSessionId, 0);
+    }
+
+    /**
+     * Select the playback engine (PlaybackEngine.MEDIA_PLAYER or CODEC),
+     * stopping the current playback when it changes.
+     *
+     * @param bufferMs PCM buffer of the codec engine
+     * @param startMs audio decoded before starting, for the codec engine
+     */
+    void setEngine(int engine, int bufferMs, int startMs) {
+        handler.post(() -> handleSetEngine(engine, bufferMs, startMs));
+    }
+
+    private void handleSetEngine(int engine, int bufferMs, int startMs) {
+        if (engine == this.engine && bufferMs == engineBufferMs && startMs == engineStartMs) {
+            return;
+        }
+
+        if (url != null) {
+            handleStop();
+        }
+
+        cancelCrossfade();
+        clearSeeks();
+        this.engine = engine;
+        this.engineBufferMs = bufferMs;
+        this.engineStartMs = startMs;
+
+        player.release();
+        player = createPlayer();
+
+        if (nextPlayer != null) {
+            nextPlayer.release();
+            nextPlayer = null;
+        }
+
+        url = null;
+    }
+
+    private String proxyUrl(String url) {
+        return cache.getProxyUrl(url);
     }
 
     public void play(String url) {
+        handler.post(() -> handlePlay(url));
+    }
+
+    private void handlePlay(String url) {
         //Log.v("MusicPlayer", "play " + url);
-        player.reset();
-        channel.invokeMethod("onLoading", true);
-        channel.invokeMethod("onPosition", 0);
+        cancelCrossfade();
+        clearSeeks();
+        restorePosition = -1;
+        restorePlay = false;
 
-        if (proxy == null) {
-            proxy = new HttpProxyCacheServer
-                .Builder(context)
-                .cacheDirectory(context.getExternalCacheDir())
-                .build();
+        if (url != null && url.equals(nextUrl)) {
+            // the requested track is the preloaded one,
+            // so just switch to the second player
+            playNextPlayer();
+            return;
         }
 
-        String proxyUrl = proxy.getProxyUrl(url);
+        stopWaiting();
+        this.url = url;
+        stats.onPlay(url, preview ? cache.onPreview(url) : cache.onPlay(url));
+        player.reset();
+        prepared = false;
+        stalled = false;
+        currentPosition = 0;
+        currentDuration = 0;
+        events.send(MusicEvents.LOADING, 1);
+        events.send(MusicEvents.POSITION, 0);
+
+        String proxyUrl = proxyUrl(url);
         //Log.v("MusicPlayer", "url " + url);
         //Log.v("MusicPlayer", "Proxy Url " + proxyUrl);
 
@@ -73,143 +388,710 @@ public class MusicPlayer implements MediaPlayer.OnPreparedListener,
             player.prepareAsync();
             startTask();
         } catch (IOException e) {
-            e.printStackTrace();
+            onError("Cannot play " + url + ": " + e.getMessage());
         }
     }
 
-    private void startTask() {
-        if (task != null) {
-            task.cancel();
+    /**
+     * Prepare the track of a restored session, paused at the position it was at.
+     * Through the cache, the bytes already cached are not downloaded again.
+     */
+    public void restore(String url, int position) {
+        currentPosition = position;
+        handler.post(() -> handleRestore(url, position));
+    }
+
+    private void handleRestore(String url, int position) {
+        handlePlay(url);
+        restorePosition = position;
+        currentPosition = position;
+        events.send(MusicEvents.POSITION, position);
+    }
+
+    /**
+     * Prepare the upcoming track on the second player, so it can be started
+     * without any gap when the current one completes (or when it is played).
+     */
+    public void preload(String url) {
+        handler.post(() -> handlePreload(url));
+    }
+
+    private void handlePreload(String url) {
+        if (url == null || url.equals(nextUrl)) {
+            return;
         }
 
-        if (timer != null) {
-            timer.cancel();
+        if (crossfade.isRunning()) {
+            // the second player is still fading
+            pendingPreload = url;
+            return;
         }
 
-        timer = new Timer();
-        task = new TimerTask() {
-            @Override
-            public void run() {
-                if (player.isPlaying()) {
-                    //Log.v("MusicPlayer", "update position...");
-                    context.runOnUiThread(() -> {
-                        onPosition();
-                        onPositionUpdated.run();
-                    });
-                }
-            }
-        };
+        clearNext();
+        nextUrl = url;
+
+        if (nextPlayer == null) {
+            nextPlayer = createPlayer();
+        }
+
+        try {
+            nextPlayer.setDataSource(proxyUrl(url));
+            nextPlayer.prepareAsync();
+        } catch (IOException e) {
+            // the current track keeps playing, the next one fails when it is played
+            String message = "Cannot preload " + url + ": " + e.getMessage();
+            Log.v("MusicPlayerPlugin", message);
+            stats.onError(message);
+            nextUrl = null;
+        }
+    }
 
-        timer.schedule(task, 0, 1000);
+    /**
+     * Drop the preloaded track (e.g. when the queue has no next item anymore),
+     * so it does not start when the current one completes.
+     */
+    public void clearPreload() {
+        handler.post(this::handleClearPreload);
     }
 
+    private void handleClearPreload() {
+        pendingPreload = null;
+
+        // while fading, the second player is the outgoing one
+        if (!crossfade.isRunning() && nextUrl != null) {
+            clearNext();
+        }
+    }
+
+    private void clearNext() {
+        handler.removeCallbacks(crossfadeCheck);
+
+        if (prepared) {
+            player.setNext(null);
+        }
+
+        if (nextPlayer != null) {
+            nextPlayer.reset();
+        }
+
+        nextUrl = null;
+        nextPrepared = false;
+    }
+
+    private void swapPlayers() {
+        swapPlayers(true);
+    }
+
+    /**
+     * The second player becomes the current one.
+     *
+     * @param reset reset the previous player, false when it is still fading out
+     */
+    private void swapPlayers(boolean reset) {
+        stopWaiting();
+        clearSeeks();
+        stalled = false;
+        PlaybackEngine current = player;
+        player = nextPlayer;
+        nextPlayer = current;
+        prepared = nextPrepared;
+        url = nextUrl;
+        stats.onPlay(url, preview ? cache.onPreview(url) : cache.onPlay(url));
+
+        if (nextPrepared) {
+            stats.onPrepared();
+        }
+
+        nextUrl = null;
+        nextPrepared = false;
+
+        if (reset) {
+            nextPlayer.reset();
+        }
+    }
+
+    private void playNextPlayer() {
+        if (prepared) {
+            player.setNext(null);
+        }
+
+        boolean ready = nextPrepared;
+        swapPlayers();
+        currentPosition = 0;
+        events.send(MusicEvents.POSITION, 0);
+
+        if (ready) {
+            player.start();
+            checkFirstAudio();
+            startTask();
+            currentDuration = player.getDuration();
+            events.send(MusicEvents.DURATION, currentDuration);
+            events.send(MusicEvents.PLAYING);
+            anchor();
+            scheduleCrossfade();
+        } else {
+            // still preparing, onPrepared will start it
+            events.send(MusicEvents.LOADING, 1);
+            startTask();
+        }
+    }
+
+    private void startTask() {
+        ticker.start(tick);
+    }
+
+    private void checkFirstAudio() {
+        firstAudioDeadline = SystemClock.elapsedRealtime() + FIRST_AUDIO_TIMEOUT;
+        handler.removeCallbacks(firstAudioCheck);
+        handler.postDelayed(firstAudioCheck, FIRST_AUDIO_INTERVAL);
+    }
+
+    /**
+     * Last known position, updated on each tick, seek and state change.
+     */
     public int getCurrentPosition() {
-        return player.getCurrentPosition();
+        return currentPosition;
     }
 
     public int getDuration() {
-        return player.getDuration();
+        return currentDuration;
+    }
+
+    /**
+     * Send the current position, with the time it was taken and the playback speed,
+     * so Dart can compute the position by itself until the next anchor.
+     */
+    private void anchor() {
+        long now = System.nanoTime();
+        long position = -1;
+        float speed = player.isPlaying() ? 1 : 0;
+
+        if (player.getTimestamp(now, timestamp)) {
+            speed = timestamp.speed;
+            position = timestamp.position;
+        }
+
+        if (position < 0) {
+            position = player.getCurrentPosition();
+        }
+
+        if (stalled) {
+            speed = 0;
+        }
+
+        anchorPosition = position;
+        anchorTime = now;
+        currentPosition = (int) position;
+        anchorSpeed = speed;
+        // Dart extrapolates from the time it was taken, not the time it arrives
+        events.send(MusicEvents.ANCHOR, Math.round(speed * 1000), position, now);
     }
 
-    private void onPosition() {
-        channel.invokeMethod("onPosition", player.getCurrentPosition());
+    private void checkDrift() {
+        long expected = anchorPosition
+            + (long) ((System.nanoTime() - anchorTime) / 1000000 * anchorSpeed);
+
+        if (Math.abs(player.getCurrentPosition() - expected) > DRIFT) {
+            anchor();
+        }
     }
 
     public void pause() {
-        if (player.isPlaying()) {
-            if (task != null) {
-                task.cancel();
-            }
+        handler.post(this::handlePause);
+    }
 
-            if (timer != null) {
-                timer.cancel();
-            }
+    private void handlePause() {
+        handler.removeCallbacks(crossfadeCheck);
+        restorePlay = false;
+
+        if (crossfade.isRunning()) {
+            ticker.stop();
+            crossfade.pause();
+            events.send(MusicEvents.PAUSED);
+            anchor();
+            return;
+        }
+
+        if (waiting) {
+            // paused while waiting for the buffer, it won't start by itself
+            stopWaiting();
+            ticker.stop();
+            events.send(MusicEvents.PAUSED);
+            anchor();
+            return;
+        }
 
+        if (player.isPlaying()) {
+            ticker.stop();
             player.pause();
-            channel.invokeMethod("onPaused", null);
+            events.send(MusicEvents.PAUSED);
+            anchor();
         }
     }
 
     public void resume() {
+        handler.post(this::handleResume);
+    }
+
+    private void handleResume() {
+        if (restorePosition >= 0) {
+            // the restored track is still preparing, it starts once prepared
+            restorePlay = true;
+            return;
+        }
+
+        if (crossfade.isRunning()) {
+            startTask();
+            crossfade.resume();
+            events.send(MusicEvents.PLAYING);
+            anchor();
+            return;
+        }
+
         if (!player.isPlaying()) {
             startTask();
             player.start();
-            channel.invokeMethod("onPlaying", null);
+            events.send(MusicEvents.PLAYING);
+            anchor();
+            scheduleCrossfade();
         }
     }
 
     public void stop() {
-        if (task != null) {
-            task.cancel();
-        }
-
-        if (timer != null) {
-            timer.cancel();
-        }
+        handler.post(this::handleStop);
+    }
 
+    private void handleStop() {
+        ticker.stop();
+        stopWaiting();
+        cancelCrossfade();
+        clearSeeks();
+        restorePosition = -1;
+        restorePlay = false;
+        pendingPreload = null;
+        clearNext();
         player.stop();
-        channel.invokeMethod("onStopped", null);
+        prepared = false;
+        events.send(MusicEvents.STOPPED);
     }
 
     public void seek(int position) {
-        if (task != null) {
-            task.cancel();
-        }
+        // shown right away, even before the seek is handled
+        currentPosition = position;
+        handler.post(() -> handleSeek(position));
+    }
+
+    private void handleSeek(int position) {
+        // seeking the current track ends the fade to the next one
+        cancelCrossfade();
+        seekTo(position, scrubbing);
+    }
+
+    /**
+     * Start dragging the seek bar: until endScrub, seeks are fast (to sync frames)
+     * and the position is updated more often.
+     */
+    public void beginScrub() {
+        handler.post(() -> setScrubbing(true));
+    }
+
+    public void scrub(int position) {
+        currentPosition = position;
+        handler.post(() -> {
+            if (!scrubbing) {
+                setScrubbing(true);
+            }
+
+            handleSeek(position);
+        });
+    }
+
+    /**
+     * Release the seek bar at `position`, seeking exactly there.
+     */
+    public void endScrub(int position) {
+        currentPosition = position;
+        handler.post(() -> {
+            setScrubbing(false);
+            handleSeek(position);
+        });
+    }
+
+    private void setScrubbing(boolean scrubbing) {
+        this.scrubbing = scrubbing;
+        ticker.setScrubbing(scrubbing);
+    }
+
+    private void seekTo(int position, boolean fast) {
+        // show the target right away, anchored again when the seek completes
+        events.send(MusicEvents.POSITION, position);
 
-        if (timer != null) {
-            timer.cancel();
+        if (seekInFlight && !isCachedAt(position)) {
+            // it would wait for the network behind the seek in flight,
+            // sent when that one completes (replaced by any later target)
+            pendingSeek = position;
+            pendingFast = fast;
+            return;
         }
 
-        player.seekTo(position);
+        pendingSeek = -1;
+        seekInFlight = true;
+        stats.onSeek();
+        player.seekTo(position, fast);
         startTask();
     }
 
+    private boolean isCachedAt(int position) {
+        if (url == null) {
+            return false;
+        }
+
+        long offset = (long) (position * bytesPerMillis);
+        return cache.isCached(url) || cache.cachedBytes(url, offset) >= SEEK_CACHED_BYTES;
+    }
+
+    private void clearSeeks() {
+        seekInFlight = false;
+        pendingSeek = -1;
+    }
+
     public void playPrevious() {
-        channel.invokeMethod("onPlayPrevious", null);
+        events.send(MusicEvents.PLAY_PREVIOUS);
     }
 
     public void playNext() {
-        channel.invokeMethod("onPlayNext", null);
+        events.send(MusicEvents.PLAY_NEXT);
     }
 
     @Override
-    public void onPrepared(MediaPlayer mp) {
+    public void onPrepared(PlaybackEngine mp) {
+        if (mp == nextPlayer) {
+            nextPrepared = true;
+            chainNext();
+            scheduleCrossfade();
+            return;
+        }
+
+        prepared = true;
+        stats.onPrepared();
+        chainNext();
+
+        // call flutter channel to update duration & playing status
+        currentDuration = player.getDuration();
+        events.send(MusicEvents.DURATION, currentDuration);
+
+        if (restorePosition >= 0) {
+            int position = restorePosition;
+            boolean play = restorePlay;
+            restorePosition = -1;
+            restorePlay = false;
+
+            if (position > 0) {
+                seekTo(position, false);
+            }
+
+            if (!play) {
+                ticker.stop();
+                events.send(MusicEvents.PAUSED);
+
+                if (position == 0) {
+                    anchor();
+                }
+
+                return;
+            }
+        }
+
+        if (!hasWatermark(startWatermark, 0)) {
+            // not enough buffered yet, start when the watermark is reached
+            waitForWatermark(startWatermark);
+            return;
+        }
+
         // The media player is done preparing.
         // That means we can start playing if we have audio focus.
         player.start();
-
-        // call flutter channel to update duration & playing status
-        channel.invokeMethod("onDuration", player.getDuration());
-        channel.invokeMethod("onPlaying", null);
+        checkFirstAudio();
+        events.send(MusicEvents.PLAYING);
+        anchor();
+        scheduleCrossfade();
     }
 
     @Override
-    public void onCompletion(MediaPlayer mp) {
-        if (task != null) {
-            task.cancel();
+    public void onCompletion(PlaybackEngine mp) {
+        if (crossfade.isRunning() && mp == crossfade.outgoing()) {
+            // ended before the ramp, the incoming player takes over now
+            crossfade.finish();
+            return;
+        }
+
+        if (mp != player) {
+            return;
+        }
+
+        if (nextPrepared) {
+            // the next player has been started by the framework when chained,
+            // otherwise the fade could not start (too close to the end, or paused there)
+            // and it starts now. It becomes the current one
+            swapPlayers();
+
+            if (!player.isPlaying()) {
+                player.start();
+            }
+
+            onNextTookOver();
+            return;
+        }
+
+        ticker.stop();
+
+        // the listener may continue with another track (queued after this),
+        // otherwise go back to the start
+        main.post(() -> {
+            if (!listener.onCompleted()) {
+                handler.post(this::handleCompleted);
+            }
+        });
+    }
+
+    private void onNextTookOver() {
+        checkFirstAudio();
+        startTask();
+        currentDuration = player.getDuration();
+        events.send(MusicEvents.DURATION, currentDuration);
+        events.send(MusicEvents.PLAYING);
+        anchor();
+        main.post(listener::onNextStarted);
+    }
+
+    /**
+     * Fade to the next track `crossfadeMs` before the end of the current one.
+     * Without crossfade, the next player is chained to the current one (gapless).
+     */
+    void setCrossfade(int duration) {
+        handler.post(() -> handleSetCrossfade(duration));
+    }
+
+    private void handleSetCrossfade(int duration) {
+        crossfadeMs = Math.max(0, duration);
+
+        // the next player is already playing in a running fade, which finishes
+        // as it started: the new duration applies to the next transition
+        if (crossfade.isRunning()) {
+            return;
+        }
+
+        if (prepared && nextPrepared) {
+            player.setNext(crossfadeMs == 0 ? nextPlayer : null);
+        }
+
+        scheduleCrossfade();
+    }
+
+    private void chainNext() {
+        if (prepared && nextPrepared && crossfadeMs == 0) {
+            player.setNext(nextPlayer);
+        }
+    }
+
+    private void scheduleCrossfade() {
+        handler.removeCallbacks(crossfadeCheck);
+
+        if (crossfadeMs <= 0 || !prepared || !nextPrepared || crossfade.isRunning()
+            || !player.isPlaying()) {
+            return;
+        }
+
+        int remaining = player.getDuration() - player.getCurrentPosition();
+        handler.postDelayed(crossfadeCheck, Math.max(0, remaining - crossfadeMs));
+    }
+
+    private void checkCrossfade() {
+        if (crossfadeMs <= 0 || !prepared || !nextPrepared || crossfade.isRunning()
+            || !player.isPlaying()) {
+            return;
+        }
+
+        int remaining = player.getDuration() - player.getCurrentPosition();
+
+        if (remaining > crossfadeMs + CROSSFADE_TOLERANCE) {
+            // the position fell behind (stall), check again later
+            handler.postDelayed(crossfadeCheck, remaining - crossfadeMs);
+            return;
+        }
+
+        if (remaining < MIN_CROSSFADE) {
+            // too late for a fade, the next track starts on completion
+            return;
+        }
+
+        crossfade.start(player, nextPlayer, Math.min(crossfadeMs, remaining));
+    }
+
+    private void onCrossfadeMidpoint() {
+        // the incoming track is now the current one (notification, session, Dart),
+        // the outgoing one keeps fading as the second player
+        swapPlayers(false);
+        onNextTookOver();
+    }
+
+    private void onCrossfadeFinished() {
+        nextPlayer.reset();
+        scheduleCrossfade();
+
+        if (pendingPreload != null) {
+            String url = pendingPreload;
+            pendingPreload = null;
+            handlePreload(url);
         }
+    }
+
+    /**
+     * Stop fading right away: the outgoing player is dropped, or when the midpoint
+     * is not reached yet, the incoming one goes back to its start, still prepared.
+     */
+    private void cancelCrossfade() {
+        handler.removeCallbacks(crossfadeCheck);
+
+        if (!crossfade.isRunning()) {
+            return;
+        }
+
+        boolean switched = crossfade.isPastMidpoint();
+        crossfade.cancel();
 
-        if (timer != null) {
-            timer.cancel();
+        if (switched) {
+            nextPlayer.reset();
+        } else {
+            nextPlayer.pause();
+            nextPlayer.seekTo(0);
         }
 
+        if (pendingPreload != null) {
+            String url = pendingPreload;
+            pendingPreload = null;
+            handlePreload(url);
+        }
+    }
+
+    private void handleCompleted() {
         player.seekTo(0);
-        channel.invokeMethod("onCompleted", null);
-        onPosition();
-        onPositionUpdated.run();
+        events.send(MusicEvents.COMPLETED);
+        anchor();
+        main.post(positionUpdated);
     }
 
-    public void close() {
-        if (task != null) {
-            task.cancel();
+    @Override
+    public void onSeekComplete(PlaybackEngine mp) {
+        if (mp == player) {
+            stats.onSeekComplete();
+            seekInFlight = false;
+
+            if (pendingSeek >= 0) {
+                seekTo(pendingSeek, pendingFast);
+                return;
+            }
+
+            anchor();
+            scheduleCrossfade();
+        }
+    }
+
+    @Override
+    public void onBufferingStart(PlaybackEngine mp) {
+        if (mp != player) {
+            return;
+        }
+
+        // playback stalls at the current position
+        stalled = true;
+        stats.onBufferingStart();
+        anchor();
+        setBuffering(true);
+
+        if (resumeWatermark > 0 && !waiting) {
+            // don't resume with a tiny buffer only to stall again
+            player.pause();
+            waitForWatermark(resumeWatermark);
+        }
+    }
+
+    @Override
+    public void onBufferingEnd(PlaybackEngine mp) {
+        // when waiting for the watermark, playback is resumed by us
+        if (mp == player && !waiting) {
+            stalled = false;
+            stats.onBufferingEnd();
+            anchor();
+            setBuffering(false);
+            scheduleCrossfade();
         }
+    }
 
-        if (timer != null) {
-            timer.cancel();
-            timer.purge();
+    @Override
+    public void onBufferingUpdate(PlaybackEngine mp, int percent) {
+        if (mp == player) {
+            stats.onBufferingUpdate(percent);
         }
+    }
+
+    @Override
+    public void onError(PlaybackEngine mp, int what, int extra) {
+        if (crossfade.isRunning()) {
+            if (mp == crossfade.outgoing()) {
+                // the incoming track carries on
+                crossfade.finish();
+                return;
+            }
+
+            // the failed player is reset first, it accepts nothing else
+            boolean switched = crossfade.isPastMidpoint();
+            mp.reset();
+            crossfade.cancel();
+
+            if (switched) {
+                nextPlayer.reset();
+            }
+        }
+
+        if (mp == nextPlayer) {
+            // the preloaded track will be played (and fail) normally
+            clearNext();
+            return;
+        }
+
+        ticker.stop();
+        prepared = false;
+        onError("Playback error " + what + " (" + extra + ")");
+    }
+
+    private void onError(String message) {
+        stats.onError(message);
+        events.send(MusicEvents.STOPPED);
+        main.post(() -> listener.onError(message));
+    }
+
+    public void close() {
+        handler.post(this::handleClose);
+    }
+
+    private void handleClose() {
+        ticker.close();
+        crossfade.cancel();
+        handler.removeCallbacksAndMessages(null);
+        main.removeCallbacksAndMessages(null);
 
         player.reset();
         player.release();
+
+        if (nextPlayer != null) {
+            nextPlayer.reset();
+            nextPlayer.release();
+        }
+
+        // commands queued after close are dropped
+        if (thread != null) {
+            thread.quitSafely();
+        }
     }
 }
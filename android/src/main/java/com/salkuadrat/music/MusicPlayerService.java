@@ -5,11 +5,16 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.media.MediaMetadata;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
@@ -21,7 +26,6 @@ import androidx.core.app.NotificationManagerCompat;
 import androidx.media.app.NotificationCompat.MediaStyle;
 
 import java.util.Calendar;
-import java.util.concurrent.TimeUnit;
 
 import io.flutter.embedding.android.FlutterActivity;
 
@@ -31,13 +35,56 @@ public class MusicPlayerService extends Service {
         MusicPlayerService service = MusicPlayerService.this;
     }
 
+    // token of the media session, given to the empty notification
+    static final String EXTRA_SESSION = "session";
+
+    private static final String channelId = "musicplayer";
+    private static volatile boolean channelCreated = false;
+
     private NotificationManagerCompat manager;
 
     private final int notifId = 13372589;
-    private final String channelId = "musicplayer";
     private final LocalBinder binder = new LocalBinder();
-    private long timeDiff = 0;
-    private long timePaused = 0;
+
+    // minimum time between two notify calls, the system drops updates
+    // from apps posting more than a few notifications per second
+    private static final long NOTIFY_INTERVAL = 250;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable notifier = this::publish;
+    private final Calendar calendar = Calendar.getInstance();
+    private final PlaybackStateCompat.Builder stateBuilder = new PlaybackStateCompat.Builder()
+        .setActions(PlaybackStateCompat.ACTION_PLAY_PAUSE |
+            PlaybackStateCompat.ACTION_PLAY |
+            PlaybackStateCompat.ACTION_PAUSE |
+            PlaybackStateCompat.ACTION_SEEK_TO |
+            PlaybackStateCompat.ACTION_STOP |
+            PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
+            PlaybackStateCompat.ACTION_SKIP_TO_NEXT);
+
+    private NotificationCompat.Action previousAction;
+    private NotificationCompat.Action pauseAction;
+    private NotificationCompat.Action playAction;
+    private NotificationCompat.Action nextAction;
+    private PendingIntent cancelIntent;
+    private PendingIntent deleteIntent;
+    private PendingIntent contentIntent;
+
+    private NotificationCompat.Builder builder;
+    private MediaSessionCompat session;
+    private int layout = -1;
+    private int whenMinute = -1;
+    private int whenSecond = -1;
+    private boolean attached = false;
+    private boolean dirty = false;
+    private long lastNotify = 0;
+
+    private String metadataId;
+    private String metadataTitle;
+    private String metadataArtist;
+    private String metadataAlbum;
+    private Bitmap metadataImage;
+    private int metadataDuration = -1;
 
     @Nullable
     @Override
@@ -49,6 +96,28 @@ public class MusicPlayerService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.v("MusicPlayerService", "onStartCommand");
         manager = NotificationManagerCompat.from(getApplicationContext());
+        createChannel(getApplicationContext());
+
+        MediaSessionCompat.Token token = null;
+
+        if (intent != null) {
+            intent.setExtrasClassLoader(MediaSessionCompat.Token.class.getClassLoader());
+            token = intent.getParcelableExtra(EXTRA_SESSION);
+        }
+
+        // Fixing: Context.startForegroundService() did not then call Service.startForeground()
+        // Start an empty notification before showing the real one
+        showEmptyNotification(token);
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Create the notification channel, once. Safe off the main thread, for the warm-up.
+     */
+    static void createChannel(Context context) {
+        if (channelCreated) {
+            return;
+        }
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             String channelName = "Music Player";
@@ -57,18 +126,20 @@ public class MusicPlayerService extends Service {
             channel.setSound(null, null);
             channel.enableLights(true);
             channel.setLockscreenVisibility(Notification.VISIBILITY_PUBLIC);
-            manager.createNotificationChannel(channel);
+            NotificationManagerCompat.from(context).createNotificationChannel(channel);
         }
 
-        // Fixing: Context.startForegroundService() did not then call Service.startForeground()
-        // Start an empty notification before showing the real one
-        showEmptyNotification();
-        return START_NOT_STICKY;
+        channelCreated = true;
     }
 
-    private void showEmptyNotification() {
-        MediaSessionCompat session = new MediaSessionCompat(getApplicationContext(), "MusicPlayerService");
-        MediaStyle mediaStyle = new MediaStyle().setMediaSession(session.getSessionToken());
+    // on the plugin session, instead of a throwaway one
+    private void showEmptyNotification(MediaSessionCompat.Token token) {
+        MediaStyle mediaStyle = new MediaStyle();
+
+        if (token != null) {
+            mediaStyle.setMediaSession(token);
+        }
+
         NotificationCompat.Builder builder = new NotificationCompat
             .Builder(getApplicationContext(), channelId)
             .setContentTitle("")
@@ -81,6 +152,9 @@ public class MusicPlayerService extends Service {
         }
 
         startForeground(notifId, builder.build());
+        attached = true;
+        // the real notification has to be built again over the empty one
+        this.builder = null;
     }
 
     private PendingIntent pendingIntent(int code, Intent intent) {
@@ -99,6 +173,45 @@ public class MusicPlayerService extends Service {
         return new NotificationCompat.Action.Builder(icon, title, pendingIntent).build();
     }*/
 
+    private void createActions() {
+        if (previousAction != null) {
+            return;
+        }
+
+        /*NotificationCompat.Action previous = mediaAction(
+            R.drawable.media_previous, "Previous", PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS);
+        NotificationCompat.Action pause = mediaAction(
+            R.drawable.media_pause, "Pause", PlaybackStateCompat.ACTION_PAUSE);
+        NotificationCompat.Action play = mediaAction(
+            R.drawable.media_play, "Play", PlaybackStateCompat.ACTION_PLAY);
+        NotificationCompat.Action next = mediaAction(
+            R.drawable.media_next, "Next", PlaybackStateCompat.ACTION_SKIP_TO_NEXT);*/
+
+        previousAction = mediaAction(
+            R.drawable.media_previous, 1, "Previous", MusicAction.previous);
+        pauseAction = mediaAction(
+            R.drawable.media_pause, 2, "Pause", MusicAction.pause);
+        playAction = mediaAction(
+            R.drawable.media_play, 2, "Play", MusicAction.play);
+        nextAction = mediaAction(
+            R.drawable.media_next, 3, "Next", MusicAction.next);
+
+        cancelIntent = pendingIntent(4, MusicAction.stop);
+        deleteIntent = pendingIntent(2, MusicAction.stop);
+
+        Intent notificationIntent = new Intent(getApplicationContext(), FlutterActivity.class);
+        notificationIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        contentIntent = PendingIntent.getActivity(getApplicationContext(), 0,
+            notificationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Update the media session and notification from a snapshot of the current music
+     * (immutable, so it is read consistently whatever thread published it).
+     * Metadata is only sent when the music (or its image) changes,
+     * the notification builder is only rebuilt when its actions change,
+     * and notify calls are coalesced to stay under the notification rate limit.
+     */
     void showNotification(Music music) {
         MediaSessionCompat session = music.session;
 
@@ -108,7 +221,7 @@ public class MusicPlayerService extends Service {
 
         // when music is not playing, detached notification from its service
         // so the notification will become cancellable
-        if (!music.isPlaying) {
+        if (!music.isPlaying && attached) {
             detachNotifFromService();
         }
 
@@ -116,42 +229,105 @@ public class MusicPlayerService extends Service {
         //Log.v("MusicPlayerService", "Position: " + music.position);
         //Log.v("MusicPlayerService", "Duration: " + music.duration);
 
-        MediaMetadataCompat metadata = new MediaMetadataCompat.Builder()
-            .putString(MediaMetadata.METADATA_KEY_TITLE, music.title)
-            .putString(MediaMetadata.METADATA_KEY_ARTIST, music.artist)
-            .putString(MediaMetadata.METADATA_KEY_ALBUM, music.album)
-            .putBitmap(MediaMetadata.METADATA_KEY_ART, music.image)
-            .putLong(MediaMetadata.METADATA_KEY_DURATION, music.duration)
-            .build();
+        createActions();
 
-        session.setMetadata(metadata);
+        boolean metadataChanged = updateMetadata(music, session);
 
-        int playbackSpeed = music.isPlaying ? 1 : 0;
+        int playbackSpeed = music.isPlaying && !music.isBuffering ? 1 : 0;
         int playbackState = music.isPlaying
             ? PlaybackStateCompat.STATE_PLAYING
             : PlaybackStateCompat.STATE_PAUSED;
 
-        boolean showPrevNext = music.showPrevious || music.showNext;
+        if (music.isPlaying && music.isBuffering) {
+            playbackState = PlaybackStateCompat.STATE_BUFFERING;
+        }
 
-        PlaybackStateCompat state = new PlaybackStateCompat.Builder()
+        session.setPlaybackState(stateBuilder
             .setState(playbackState, music.position, playbackSpeed)
-            .setActions(PlaybackStateCompat.ACTION_PLAY_PAUSE |
-                PlaybackStateCompat.ACTION_PLAY |
-                PlaybackStateCompat.ACTION_PAUSE |
-                PlaybackStateCompat.ACTION_SEEK_TO |
-                PlaybackStateCompat.ACTION_STOP |
-                PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
-                PlaybackStateCompat.ACTION_SKIP_TO_NEXT)
-            .build();
-
-        session.setPlaybackState(state);
-        session.setActive(true);
+            .build());
+
+        if (!session.isActive()) {
+            session.setActive(true);
+        }
+
+        boolean showPrevNext = music.showPrevious || music.showNext;
+        int layout = (showPrevNext ? 1 : 0) | (music.isLoading ? 2 : 0) | (music.isPlaying ? 4 : 0);
+
+        if (builder == null || layout != this.layout || session != this.session) {
+            this.layout = layout;
+            this.session = session;
+            builder = createBuilder(music, session, showPrevNext);
+            metadataChanged = true;
+        }
+
+        if (metadataChanged) {
+            builder.setContentTitle(music.artist)
+                .setContentText(music.title)
+                .setLargeIcon(music.image);
+            dirty = true;
+        }
+
+        int secpos = music.position / 1000;
+        int hour = secpos / 3600;
+        int minute = (secpos % 3600) / 60;
+        int second = secpos % 60;
+
+        // the "when" field only changes once per second of position
+        if (minute != whenMinute || second != whenSecond) {
+            whenMinute = minute;
+            whenSecond = second;
+            calendar.setTimeInMillis(System.currentTimeMillis());
+            calendar.set(Calendar.HOUR_OF_DAY, minute);
+            calendar.set(Calendar.MINUTE, second);
+            calendar.set(Calendar.SECOND, 0);
+            builder.setWhen(calendar.getTimeInMillis());
+            dirty = true;
+        }
+
+        if (dirty) {
+            scheduleNotify();
+        }
+    }
+
+    private boolean updateMetadata(Music music, MediaSessionCompat session) {
+        boolean changed = session != this.session
+            || !equals(music.id, metadataId)
+            || !equals(music.title, metadataTitle)
+            || !equals(music.artist, metadataArtist)
+            || !equals(music.album, metadataAlbum)
+            || music.image != metadataImage
+            || music.duration != metadataDuration;
+
+        if (changed) {
+            metadataId = music.id;
+            metadataTitle = music.title;
+            metadataArtist = music.artist;
+            metadataAlbum = music.album;
+            metadataImage = music.image;
+            metadataDuration = music.duration;
+
+            MediaMetadataCompat metadata = new MediaMetadataCompat.Builder()
+                .putString(MediaMetadata.METADATA_KEY_TITLE, music.title)
+                .putString(MediaMetadata.METADATA_KEY_ARTIST, music.artist)
+                .putString(MediaMetadata.METADATA_KEY_ALBUM, music.album)
+                .putBitmap(MediaMetadata.METADATA_KEY_ART, music.image)
+                .putLong(MediaMetadata.METADATA_KEY_DURATION, music.duration)
+                .build();
+
+            session.setMetadata(metadata);
+        }
+
+        return changed;
+    }
+
+    private NotificationCompat.Builder createBuilder(
+        Music music, MediaSessionCompat session, boolean showPrevNext) {
 
         MediaStyle mediaStyle = new MediaStyle()
             .setMediaSession(session.getSessionToken())
             // For backwards compatibility with Android L and earlier.
             .setShowCancelButton(true)
-            .setCancelButtonIntent(pendingIntent(4, MusicAction.stop));
+            .setCancelButtonIntent(cancelIntent);
 
         if (!music.isLoading) {
             if (showPrevNext) {
@@ -163,25 +339,12 @@ public class MusicPlayerService extends Service {
 
         NotificationCompat.Builder builder = new NotificationCompat
             .Builder(getApplicationContext(), channelId)
-            .setContentTitle(music.artist)
-            .setContentText(music.title)
-            .setLargeIcon(music.image)
             .setSmallIcon(R.drawable.notification_icon)
             .setOngoing(music.isPlaying)
+            .setOnlyAlertOnce(true)
             .setStyle(mediaStyle);
 
-        int secpos = music.position / 1000;
-        int hour = secpos / 3600;
-        int minute = (secpos % 3600) / 60;
-        int second = secpos % 60;
-
-        Calendar now = Calendar.getInstance();
-        now.set(Calendar.HOUR_OF_DAY, minute);
-        now.set(Calendar.MINUTE, second);
-        now.set(Calendar.SECOND, 0);
-        long when = now.getTimeInMillis();
         builder.setUsesChronometer(false);
-        builder.setWhen(when);
 
         /*if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
             builder.setUsesChronometer(true);
@@ -193,59 +356,60 @@ public class MusicPlayerService extends Service {
             builder.setChannelId(channelId);
         }
 
-        /*NotificationCompat.Action previous = mediaAction(
-            R.drawable.media_previous, "Previous", PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS);
-        NotificationCompat.Action pause = mediaAction(
-            R.drawable.media_pause, "Pause", PlaybackStateCompat.ACTION_PAUSE);
-        NotificationCompat.Action play = mediaAction(
-            R.drawable.media_play, "Play", PlaybackStateCompat.ACTION_PLAY);
-        NotificationCompat.Action next = mediaAction(
-            R.drawable.media_next, "Next", PlaybackStateCompat.ACTION_SKIP_TO_NEXT);*/
-
-        NotificationCompat.Action previous = mediaAction(
-            R.drawable.media_previous, 1, "Previous", MusicAction.previous);
-        NotificationCompat.Action pause = mediaAction(
-            R.drawable.media_pause, 2, "Pause", MusicAction.pause);
-        NotificationCompat.Action play = mediaAction(
-            R.drawable.media_play, 2, "Play", MusicAction.play);
-        NotificationCompat.Action next = mediaAction(
-            R.drawable.media_next, 3, "Next", MusicAction.next);
-
         if (showPrevNext) {
-            builder.addAction(previous);
+            builder.addAction(previousAction);
         }
 
         if (!music.isLoading) {
             if (music.isPlaying) {
-                builder.addAction(pause);
+                builder.addAction(pauseAction);
             } else {
-                builder.addAction(play);
+                builder.addAction(playAction);
             }
         }
 
         if (showPrevNext) {
-            builder.addAction(next);
+            builder.addAction(nextAction);
         }
 
         // When notification is deleted (when playback is paused and
         // notification can be deleted) fire MediaButtonPendingIntent
         // with ACTION_PAUSE.
-        builder.setDeleteIntent(pendingIntent(2, MusicAction.stop));
+        builder.setDeleteIntent(deleteIntent);
+        builder.setContentIntent(contentIntent);
 
-        Intent notificationIntent = new Intent(getApplicationContext(), FlutterActivity.class);
-        notificationIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
-        builder.setContentIntent(PendingIntent.getActivity(getApplicationContext(), 0,
-                notificationIntent, PendingIntent.FLAG_UPDATE_CURRENT));
+        // force the "when" field to be set on the new builder
+        whenMinute = -1;
+        whenSecond = -1;
+        return builder;
+    }
+
+    private void scheduleNotify() {
+        handler.removeCallbacks(notifier);
+        long delay = lastNotify + NOTIFY_INTERVAL - SystemClock.uptimeMillis();
+        handler.postDelayed(notifier, Math.max(0, delay));
+    }
 
-        Notification n = builder.build();
+    private void publish() {
+        if (!dirty || builder == null) {
+            return;
+        }
+
+        dirty = false;
+        lastNotify = SystemClock.uptimeMillis();
 
         if (manager != null) {
             manager.notify(notifId, builder.build());
         }
     }
 
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
     private void detachNotifFromService() {
         //Log.v("MusicPlayerService", "detachNotifFromService");
+        attached = false;
         if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             stopForeground(STOP_FOREGROUND_DETACH);
         } else {
@@ -255,6 +419,11 @@ public class MusicPlayerService extends Service {
 
     public void cancel() {
         //Log.v("MusicPlayerService", "cancelNotification");
+        handler.removeCallbacks(notifier);
+        dirty = false;
+        // make sure the next notification is built from scratch
+        builder = null;
+
         if (manager != null) {
             manager.cancel(notifId);
         }
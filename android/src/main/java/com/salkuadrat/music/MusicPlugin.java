@@ -8,14 +8,18 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.content.SharedPreferences;
 import android.media.AudioAttributes;
 import android.media.AudioFocusRequest;
 import android.media.AudioManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.util.Log;
 
@@ -23,6 +27,12 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.embedding.engine.plugins.activity.ActivityAware;
@@ -37,25 +47,125 @@ public class MusicPlugin extends BroadcastReceiver implements
     Application.ActivityLifecycleCallbacks,
     AudioManager.OnAudioFocusChangeListener {
 
+    private static final String PREFERENCES = "salkuadrat.musicplayer";
+    private static final String KEY_AUTO_WARM_UP = "autoWarmUp";
+
+    // preview players alive at once (the least recently used is reclaimed),
+    // and idle MediaPlayers kept for them
+    private static final int MAX_PREVIEWS = 4;
+    private static final int MAX_IDLE_PLAYERS = 4;
+
     private MethodChannel channel;
+    private MusicEvents events;
     private Context context;
     private Activity activity;
     private MusicPlayer player;
     private MusicPlayerService service;
+    private PositionTicker ticker;
+    private ArtworkLoader artwork;
+    private MusicCache cache;
+    private MusicPrefetcher prefetcher;
+    private MusicDownloads downloads;
+    private PlaybackStore store;
+    private MusicVisualizer visualizer;
+    private final MusicStats stats = new MusicStats();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private int statsInterval = 0;
 
     private AudioManager audioManager;
     private AudioFocusRequest audioFocus;
 
-    private final Music music = new Music();
+    private final MusicQueue queue = new MusicQueue();
+    // current and preloaded music, immutable snapshots replaced on every change
+    private final AtomicReference<Music> music = new AtomicReference<>(new Music());
+    private final AtomicReference<Music> nextMusic = new AtomicReference<>();
+    // last persisted track and state (the session is saved again when they change)
+    private Map<String, Object> savedTrack;
+    private Music.State savedState;
+    private boolean queueChanged = false;
     private boolean bound = false;
+    private boolean started = false;
+    private boolean warmedUp = false;
 
-    private final Runnable onPositionUpdated = () -> {
-        Log.v("MusicPlayerPlugin", "onPositionUpdated");
-        music.position = player.getCurrentPosition();
-        music.duration = player.getDuration();
+    // preview players by id, least recently used first. They share a playback thread
+    // and a MediaPlayer pool, and have no notification, queue or audio focus.
+    private final LinkedHashMap<Integer, MusicPlayer> previews = new LinkedHashMap<>(8, 0.75f, true);
+    private HandlerThread previewThread;
+    private MediaPlayerPool pool;
 
-        if (service != null) {
-            service.showNotification(music);
+    private final MusicPlayer.Listener listener = new MusicPlayer.Listener() {
+        @Override
+        public void onPositionUpdated() {
+            Log.v("MusicPlayerPlugin", "onPositionUpdated");
+            MusicPlugin.this.onPositionUpdated(player.getCurrentPosition(), player.getDuration());
+        }
+
+        @Override
+        public void onNextStarted() {
+            Log.v("MusicPlayerPlugin", "onNextStarted");
+
+            Music next = nextMusic.getAndSet(null);
+            // past the start when it took over in the middle of a crossfade
+            int position = player.getCurrentPosition();
+            int duration = player.getDuration();
+            Music current = update(music -> (next != null ? next.withSession(music.session) : music)
+                .withPosition(position, duration)
+                .withState(Music.State.PLAYING));
+            channel.invokeMethod("onNextStarted", current.id);
+
+            if (!queue.isEmpty()) {
+                queue.next(true);
+                boolean showPrevious = queue.hasPrevious();
+                boolean showNext = queue.hasNext();
+                current = update(music -> music.withNavigation(showPrevious, showNext));
+                onQueueChanged();
+                preloadNext();
+            }
+
+            showNotification(current);
+        }
+
+        @Override
+        public boolean onCompleted() {
+            Map<String, Object> next = queue.isEmpty() ? null : queue.next(true);
+
+            if (next == null) {
+                update(music -> music.withState(Music.State.COMPLETED));
+                return false;
+            }
+
+            playItem(next);
+            return true;
+        }
+
+        @Override
+        public void onError(String message) {
+            Log.v("MusicPlayerPlugin", "onError " + message);
+            Music current = update(music -> music.withState(Music.State.ERROR));
+            channel.invokeMethod("onError", message);
+            showNotification(current);
+        }
+
+        @Override
+        public void onBuffering(boolean buffering) {
+            showNotification(update(music -> music.withState(buffering
+                ? Music.State.BUFFERING
+                : music.state == Music.State.BUFFERING ? Music.State.PLAYING : music.state)));
+        }
+    };
+
+    private final MusicDownloads.Listener downloadListener = download ->
+        channel.invokeMethod("onDownload", download);
+
+    // periodic summary of the playback stats, e.g. for telemetry
+    private final Runnable statsReporter = new Runnable() {
+        @Override
+        public void run() {
+            channel.invokeMethod("onStats", stats.toMap());
+
+            if (statsInterval > 0) {
+                handler.postDelayed(this, statsInterval);
+            }
         }
     };
 
@@ -72,6 +182,7 @@ public class MusicPlugin extends BroadcastReceiver implements
             //Log.v("MusicPlayerPlugin", "onServiceDisconnected");
             service.cancel();
             bound = false;
+            started = false;
             service = null;
         }
     };
@@ -121,13 +232,13 @@ public class MusicPlugin extends BroadcastReceiver implements
         @Override
         public void onSkipToNext() {
             Log.v("MusicPlayerCallback", "onSkipToNext");
-            player.playNext();
+            skipToNext();
         }
 
         @Override
         public void onSkipToPrevious() {
             Log.v("MusicPlayerCallback", "onSkipToPrevious");
-            player.playPrevious();
+            skipToPrevious();
         }
     };
 
@@ -137,10 +248,17 @@ public class MusicPlugin extends BroadcastReceiver implements
         channel = new MethodChannel(
             flutterPluginBinding.getBinaryMessenger(), "salkuadrat/musicplayer");
         channel.setMethodCallHandler(this);
+        events = new MusicEvents(flutterPluginBinding.getBinaryMessenger());
+        visualizer = new MusicVisualizer(flutterPluginBinding.getBinaryMessenger());
     }
 
     @Override
     public void onMethodCall(@NonNull MethodCall call, @NonNull Result result) {
+        if (call.method.startsWith("preview")) {
+            onPreviewCall(call, result);
+            return;
+        }
+
         switch (call.method) {
             case "prepare":
                 prepare(call);
@@ -150,6 +268,10 @@ public class MusicPlugin extends BroadcastReceiver implements
                 play(call);
                 result.success(true);
                 break;
+            case "preload":
+                preload(call);
+                result.success(true);
+                break;
             case "pause":
                 pause();
                 result.success(true);
@@ -169,6 +291,172 @@ public class MusicPlugin extends BroadcastReceiver implements
             case "seek":
                 seek(call, result);
                 break;
+            case "setQueue":
+                setQueue(call);
+                result.success(true);
+                break;
+            case "appendQueue":
+                queue.append(call.argument("items"));
+                queueUpdated();
+                result.success(true);
+                break;
+            case "insertQueue":
+                Integer insertIndex = call.argument("index");
+                queue.insert(insertIndex != null ? insertIndex : queue.size(), call.argument("item"));
+                queueUpdated();
+                result.success(true);
+                break;
+            case "removeQueue":
+                queue.remove((Integer) call.arguments);
+                queueUpdated();
+                result.success(true);
+                break;
+            case "moveQueue":
+                Integer from = call.argument("from");
+                Integer to = call.argument("to");
+                queue.move(from != null ? from : 0, to != null ? to : 0);
+                queueUpdated();
+                result.success(true);
+                break;
+            case "setShuffle":
+                Boolean shuffle = (Boolean) call.arguments;
+                queue.setShuffle(shuffle != null && shuffle);
+                queueUpdated();
+                result.success(true);
+                break;
+            case "setRepeat":
+                Integer repeat = (Integer) call.arguments;
+                queue.setRepeat(repeat != null ? repeat : MusicQueue.REPEAT_OFF);
+                queueUpdated();
+                result.success(true);
+                break;
+            case "skipTo":
+                skipTo((Integer) call.arguments);
+                result.success(true);
+                break;
+            case "getQueue":
+                result.success(queue.toMap());
+                break;
+            case "setEngine":
+                setEngine(call);
+                result.success(true);
+                break;
+            case "setBufferWatermark":
+                setBufferWatermark(call);
+                result.success(true);
+                break;
+            case "getStats":
+                result.success(stats.toMap());
+                break;
+            case "setCrossfade":
+                Integer crossfade = (Integer) call.arguments;
+                player.setCrossfade(crossfade != null ? crossfade : 0);
+                result.success(true);
+                break;
+            case "setStatsInterval":
+                Integer interval = (Integer) call.arguments;
+                setStatsInterval(interval != null ? interval : 0);
+                result.success(true);
+                break;
+            case "prefetch":
+                prefetch(call);
+                result.success(true);
+                break;
+            case "cancelPrefetch":
+                prefetcher.cancel();
+                result.success(true);
+                break;
+            case "configureCache":
+                configureCache(call);
+                result.success(true);
+                break;
+            case "configureDownloads":
+                configureDownloads(call);
+                result.success(true);
+                break;
+            case "getCacheStats":
+                result.success(cache.getStats());
+                break;
+            case "isCached":
+                result.success(cache.isCached((String) call.arguments));
+                break;
+            case "evict":
+                result.success(cache.evict((String) call.arguments));
+                break;
+            case "clearCache":
+                cache.clear();
+                result.success(true);
+                break;
+            case "download":
+                download(call);
+                result.success(true);
+                break;
+            case "pauseDownload":
+                downloads.pause((String) call.arguments);
+                result.success(true);
+                break;
+            case "resumeDownload":
+                downloads.resume((String) call.arguments);
+                result.success(true);
+                break;
+            case "cancelDownload":
+                result.success(downloads.cancel((String) call.arguments));
+                break;
+            case "getDownloads":
+                result.success(downloads.getAll());
+                break;
+            case "isDownloaded":
+                result.success(downloads.file((String) call.arguments) != null);
+                break;
+            case "setDownloadConcurrency":
+                Integer downloadConcurrency = (Integer) call.arguments;
+                downloads.setConcurrency(downloadConcurrency != null ? downloadConcurrency : 2);
+                result.success(true);
+                break;
+            case "setPositionInterval":
+                setPositionInterval(call);
+                result.success(true);
+                break;
+            case "beginScrub":
+                player.beginScrub();
+                result.success(true);
+                break;
+            case "scrub":
+                Integer scrubPosition = (Integer) call.arguments;
+                player.scrub(scrubPosition != null ? scrubPosition : 0);
+                result.success(true);
+                break;
+            case "endScrub":
+                Integer endPosition = (Integer) call.arguments;
+                player.endScrub(endPosition != null ? endPosition : 0);
+                result.success(true);
+                break;
+            case "setScrubbing":
+                Boolean scrubbing = (Boolean) call.arguments;
+                ticker.setScrubbing(scrubbing != null && scrubbing);
+                result.success(true);
+                break;
+            case "warmUp":
+                warmUp();
+                result.success(true);
+                break;
+            case "startVisualizer":
+                startVisualizer(call, result);
+                break;
+            case "stopVisualizer":
+                visualizer.stop();
+                result.success(true);
+                break;
+            case "setAutoWarmUp":
+                Boolean autoWarmUp = (Boolean) call.arguments;
+                preferences().edit()
+                    .putBoolean(KEY_AUTO_WARM_UP, autoWarmUp != null && autoWarmUp)
+                    .apply();
+                result.success(true);
+                break;
+            case "restore":
+                result.success(restore());
+                break;
             case "dispose":
                 dispose();
                 result.success(true);
@@ -179,10 +467,132 @@ public class MusicPlugin extends BroadcastReceiver implements
         }
     }
 
+    private void onPreviewCall(@NonNull MethodCall call, @NonNull Result result) {
+        Integer id = call.argument("player");
+
+        if (id == null) {
+            result.error("player", "Missing player id", null);
+            return;
+        }
+
+        // only play creates (or re-creates a reclaimed) player
+        MusicPlayer preview = call.method.equals("previewPlay") ? preview(id) : previews.get(id);
+
+        if (preview == null) {
+            result.success(false);
+            return;
+        }
+
+        switch (call.method) {
+            case "previewPlay":
+                preview.play(call.argument("url"));
+                break;
+            case "previewPause":
+                preview.pause();
+                break;
+            case "previewResume":
+                preview.resume();
+                break;
+            case "previewStop":
+                preview.stop();
+                break;
+            case "previewSeek":
+                Integer position = call.argument("position");
+                preview.seek(position != null ? position : 0);
+                break;
+            case "previewDispose":
+                previews.remove(id);
+                preview.stop();
+                preview.close();
+                break;
+            default:
+                result.notImplemented();
+                return;
+        }
+
+        result.success(true);
+    }
+
+    private MusicPlayer preview(int id) {
+        MusicPlayer preview = previews.get(id);
+
+        if (preview != null) {
+            return preview;
+        }
+
+        if (previewThread == null) {
+            previewThread = new HandlerThread("MusicPreviews", Process.THREAD_PRIORITY_AUDIO);
+            previewThread.start();
+            pool = new MediaPlayerPool(MAX_IDLE_PLAYERS);
+        }
+
+        if (previews.size() >= MAX_PREVIEWS) {
+            // reclaim the least recently used one, its MediaPlayers go back to the pool
+            Iterator<MusicPlayer> eldest = previews.values().iterator();
+            MusicPlayer reclaimed = eldest.next();
+            eldest.remove();
+            reclaimed.stop();
+            reclaimed.close();
+        }
+
+        preview = new MusicPlayer(events.forPlayer(id), activity, cache, new MusicStats(),
+            previewListener(id), previewThread.getLooper(), pool, true);
+        previews.put(id, preview);
+        return preview;
+    }
+
+    private MusicPlayer.Listener previewListener(int id) {
+        return new MusicPlayer.Listener() {
+            @Override
+            public void onPositionUpdated() {
+            }
+
+            @Override
+            public void onNextStarted() {
+            }
+
+            @Override
+            public boolean onCompleted() {
+                return false;
+            }
+
+            @Override
+            public void onError(String message) {
+                Map<String, Object> error = new HashMap<>();
+                error.put("player", id);
+                error.put("message", message);
+                channel.invokeMethod("onPreviewError", error);
+            }
+
+            @Override
+            public void onBuffering(boolean buffering) {
+            }
+        };
+    }
+
+    private void closePreviews() {
+        for (MusicPlayer preview : previews.values()) {
+            preview.stop();
+            preview.close();
+        }
+
+        previews.clear();
+
+        if (previewThread != null) {
+            // after the players are closed
+            MediaPlayerPool pool = this.pool;
+            new Handler(previewThread.getLooper()).post(pool::close);
+            previewThread.quitSafely();
+            previewThread = null;
+            this.pool = null;
+        }
+    }
+
     private void startService() {
-        if (!bound && activity != null) {
+        if (!started && activity != null) {
             Log.v("MusicPlayerPlugin", "Starting service");
             Intent intent = new Intent(activity, MusicPlayerService.class);
+            intent.putExtra(MusicPlayerService.EXTRA_SESSION, music.get().session.getSessionToken());
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 activity.startForegroundService(intent);
@@ -190,11 +600,48 @@ public class MusicPlugin extends BroadcastReceiver implements
                 activity.startService(intent);
             }
 
+            started = true;
+        }
+
+        bindService();
+    }
+
+    // the service is created when bound, only started (foreground) to play
+    private void bindService() {
+        if (!bound && activity != null) {
             Log.v("MusicPlayerPlugin", "Binding service");
+            Intent intent = new Intent(activity, MusicPlayerService.class);
             activity.bindService(intent, connection, Context.BIND_AUTO_CREATE);
         }
     }
 
+    /**
+     * Do the work of the first play ahead of time: bind the service (not started,
+     * so without notification), and off the main thread create the notification channel,
+     * start the cache proxy and load the cache index.
+     */
+    private void warmUp() {
+        if (warmedUp || activity == null) {
+            return;
+        }
+
+        warmedUp = true;
+        bindService();
+
+        long start = SystemClock.elapsedRealtime();
+        Thread thread = new Thread(() -> {
+            MusicPlayerService.createChannel(context);
+            cache.warmUp();
+            stats.onWarmedUp(SystemClock.elapsedRealtime() - start);
+        }, "MusicWarmUp");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private SharedPreferences preferences() {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
     private void registerNoisyFilter() {
         try {
             context.unregisterReceiver(receiver);
@@ -206,108 +653,361 @@ public class MusicPlugin extends BroadcastReceiver implements
         context.registerReceiver(receiver, noisyFilter);
     }
 
-    private void prepare(@NonNull MethodCall call) {
+    /**
+     * Snapshot of the music sent from Dart, with its image when already cached.
+     */
+    private Music readMusic(Map<String, Object> args, Music base) {
+        Music music = base.withTrack(args);
+        return music.withImage(artwork.get(ArtworkLoader.key(music.imageUrl, imagePath(args))));
+    }
+
+    private String imagePath(Map<String, Object> args) {
+        String image = (String) args.get("image");
+        return image != null ? new File(context.getCacheDir(), image).getAbsolutePath() : null;
+    }
+
+    /**
+     * Load the image of the music (if not cached yet), the notification
+     * is updated once it is loaded.
+     */
+    private void loadImage(Music music, Map<String, Object> args) {
+        String path = imagePath(args);
+
+        if (music.image != null || ArtworkLoader.key(music.imageUrl, path) == null) {
+            return;
+        }
+
+        artwork.load(music.imageUrl, path, (loadedKey, bitmap) -> {
+            // the music may have changed (or moved from preloaded to current) meanwhile
+            Music.Change withImage = current -> current != null
+                && loadedKey.equals(ArtworkLoader.key(current.imageUrl, path))
+                ? current.withImage(bitmap)
+                : current;
+
+            update(nextMusic, withImage);
+            Music updated = update(withImage);
+
+            if (updated.image == bitmap) {
+                showNotification(updated);
+            }
+        });
+    }
+
+    /**
+     * Apply the change to the current music, publish and persist it.
+     */
+    private Music update(Music.Change change) {
+        Music updated = update(music, change);
+        save(updated);
+        return updated;
+    }
+
+    /**
+     * Persist the playback state, so it can be restored after the process is killed.
+     * Only the header is written on position ticks, the session (track and queue)
+     * is encoded again when it changes.
+     */
+    private void save(Music music) {
+        // stopped (or nothing played yet), nothing to restore
+        if (store == null || music.track == null || music.state == Music.State.IDLE) {
+            return;
+        }
+
+        if (music.track != savedTrack || queueChanged) {
+            savedTrack = music.track;
+            queueChanged = false;
+
+            if (!store.saveSession(session(music, true))) {
+                // too large with the queue, restore the track only
+                store.saveSession(session(music, false));
+            }
+        }
+
+        if (music.state != savedState) {
+            savedState = music.state;
+            String url = (String) music.track.get("url");
+            store.saveCached(url != null ? cache.cachedBytes(url) : 0);
+        }
+
+        store.saveState(music.state.ordinal(), music.position, music.duration);
+    }
+
+    private Map<String, Object> session(Music music, boolean withQueue) {
+        Map<String, Object> session = new HashMap<>();
+        session.put("track", music.track);
+
+        if (withQueue && !queue.isEmpty()) {
+            session.put("items", queue.items());
+            session.put("index", queue.index());
+            session.put("shuffle", queue.isShuffle());
+            session.put("repeat", queue.repeat());
+        }
+
+        return session;
+    }
+
+    /**
+     * Rebuild the session saved before the process was killed: its queue,
+     * and its track prepared paused at the saved position (from the cache
+     * when its bytes are cached). Returns what was restored, or null.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> restore() {
+        if (store == null || music.get().state != Music.State.IDLE) {
+            return null;
+        }
+
+        Map<String, Object> saved = store.load();
+        Map<String, Object> track = saved != null ? (Map<String, Object>) saved.get("track") : null;
+        String url = track != null ? (String) track.get("url") : null;
+
+        if (url == null) {
+            return null;
+        }
+
+        List<Map<String, Object>> items = (List<Map<String, Object>>) saved.get("items");
+
+        if (items != null && !items.isEmpty()) {
+            Integer index = (Integer) saved.get("index");
+            Boolean shuffle = (Boolean) saved.get("shuffle");
+            Integer repeat = (Integer) saved.get("repeat");
+            queue.set(items, index != null ? index : 0);
+            queue.setShuffle(shuffle != null && shuffle);
+            queue.setRepeat(repeat != null ? repeat : MusicQueue.REPEAT_OFF);
+        }
+
+        // missing from an older or partial session
+        Number savedPosition = (Number) saved.get("position");
+        Number savedDuration = (Number) saved.get("duration");
+        int position = savedPosition != null ? savedPosition.intValue() : 0;
+        int duration = savedDuration != null ? savedDuration.intValue() : 0;
+
         startService();
         registerNoisyFilter();
 
-        if (service != null) {
-            service.cancel();
-        }
+        Music current = update(music -> {
+            Music restored = readMusic(track, music);
+
+            if (!queue.isEmpty()) {
+                restored = restored.withNavigation(queue.hasPrevious(), queue.hasNext());
+            }
 
-        String image = call.argument("image");
+            return restored.withPosition(position, duration)
+                .withState(Music.State.READY);
+        });
 
-        if (image != null) {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-            music.image = BitmapFactory.decodeFile(
-                new File(context.getCacheDir(), image).getAbsolutePath(), options);
-        } else {
-            music.image = null;
+        loadImage(current, track);
+        player.restore(url, position);
+
+        if (!queue.isEmpty()) {
+            queueUpdated();
         }
 
-        Integer duration = call.argument("duration");
-        Boolean sp = call.argument("showPrevious");
-        Boolean sn = call.argument("showNext");
+        showNotification(current);
+
+        Map<String, Object> restored = new HashMap<>();
+        restored.put("track", track);
+        restored.put("position", position);
+        restored.put("duration", duration);
+        restored.put("cachedBytes", saved.get("cachedBytes"));
+        restored.put("savedAt", saved.get("savedAt"));
+        restored.put("queue", queue.toMap());
+        return restored;
+    }
+
+    private static Music update(AtomicReference<Music> reference, Music.Change change) {
+        while (true) {
+            Music current = reference.get();
+            Music updated = change.apply(current);
+
+            if (updated == current || reference.compareAndSet(current, updated)) {
+                return updated;
+            }
+        }
+    }
 
-        music.id = call.argument("id");
-        music.title = call.argument("title");
-        music.artist = call.argument("artist");
-        music.album = call.argument("album");
-        music.imageUrl = call.argument("imageUrl");
-        music.duration = duration != null ? duration : 0;
-        music.showPrevious = sp != null && sp;
-        music.showNext = sn != null && sn;
-        music.isLoading = true;
-        music.isPlaying = false;
-        music.position = 0;
+    /**
+     * Position tick of the main player, while it plays: the snapshot is updated,
+     * persisted and shown in the notification.
+     */
+    void onPositionUpdated(int position, int duration) {
+        showNotification(update(music -> music.withPosition(position, duration)));
+    }
 
+    private void showNotification(Music music) {
         if (service != null) {
             service.showNotification(music);
         }
     }
 
+    private void prepare(@NonNull MethodCall call) {
+        startService();
+        registerNoisyFilter();
+
+        if (service != null) {
+            service.cancel();
+        }
+
+        Map<String, Object> args = call.arguments();
+        Music current = update(music -> readMusic(args, music).withState(Music.State.LOADING));
+        loadImage(current, args);
+        showNotification(current);
+    }
+
     private void play(@NonNull MethodCall call) {
+        // playing directly from Dart replaces the native queue
+        boolean queued = !queue.isEmpty();
+
+        if (queued) {
+            queue.clear();
+            onQueueChanged();
+        }
+
+        play(call.<Map<String, Object>>arguments());
+
+        if (queued) {
+            // after the play, which takes the preloaded track when it is the one played
+            clearPreload();
+        }
+    }
+
+    private void play(Map<String, Object> args) {
         startService();
         registerNoisyFilter();
 
-        String image = call.argument("image");
+        String url = (String) args.get("url");
+        Music current = update(music -> readMusic(args, music).withState(Music.State.PLAYING));
+        loadImage(current, args);
+
+        // the preloaded track is consumed by this play
+        Music next = nextMusic.get();
+
+        if (next != null && next.id != null && next.id.equals(current.id)) {
+            nextMusic.compareAndSet(next, null);
+        }
 
-        if (image != null) {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-            music.image = BitmapFactory.decodeFile(
-                new File(context.getCacheDir(), image).getAbsolutePath(), options);
+        player.play(url);
+        showNotification(current);
+    }
+
+    private void preload(@NonNull MethodCall call) {
+        preload(call.<Map<String, Object>>arguments());
+    }
+
+    private void preload(Map<String, Object> args) {
+        String url = (String) args.get("url");
+        Music next = readMusic(args, new Music()).withState(Music.State.READY);
+        nextMusic.set(next);
+        loadImage(next, args);
+        player.preload(url);
+    }
+
+    private void setQueue(@NonNull MethodCall call) {
+        List<Map<String, Object>> items = call.argument("items");
+        Integer index = call.argument("index");
+        Boolean play = call.argument("play");
+
+        queue.set(items, index != null ? index : 0);
+        onQueueChanged();
+
+        if (play == null || play) {
+            playItem(queue.current());
         } else {
-            music.image = null;
+            preloadNext();
         }
+    }
 
-        String url = call.argument("url");
-        Integer duration = call.argument("duration");
-        Boolean sp = call.argument("showPrevious");
-        Boolean sn = call.argument("showNext");
-
-        music.id = call.argument("id");
-        music.title = call.argument("title");
-        music.artist = call.argument("artist");
-        music.album = call.argument("album");
-        music.imageUrl = call.argument("imageUrl");
-        music.duration = duration != null ? duration : 0;
-        music.showPrevious = sp != null && sp;
-        music.showNext = sn != null && sn;
-        music.isLoading = false;
-        music.isPlaying = true;
+    /**
+     * Play an item of the native queue, then preload the one after it.
+     */
+    private void playItem(Map<String, Object> item) {
+        if (item == null) {
+            return;
+        }
 
-        player.play(url);
+        play(item);
+        boolean showPrevious = queue.hasPrevious();
+        boolean showNext = queue.hasNext();
+        Music current = update(music -> music.withNavigation(showPrevious, showNext));
+        onQueueChanged();
+        preloadNext();
+        showNotification(current);
+    }
 
-        if (service != null) {
-            service.showNotification(music);
+    private void preloadNext() {
+        Map<String, Object> next = queue.peekNext(true);
+
+        if (next != null) {
+            preload(next);
+        } else {
+            clearPreload();
         }
     }
 
-    private void pause() {
-        music.position = player.getCurrentPosition();
-        music.duration = player.getDuration();
-        music.isLoading = false;
-        music.isPlaying = false;
-        player.pause();
+    /**
+     * Forget the preloaded track, it would start when the current one completes.
+     */
+    private void clearPreload() {
+        nextMusic.set(null);
+        player.clearPreload();
+    }
 
-        if (service != null) {
-            service.showNotification(music);
+    private void queueUpdated() {
+        onQueueChanged();
+
+        if (queue.current() != null) {
+            preloadNext();
+        } else {
+            clearPreload();
         }
     }
 
-    private void resume() {
-        music.position = player.getCurrentPosition();
-        music.duration = player.getDuration();
-        music.isLoading = false;
-        music.isPlaying = true;
-        player.resume();
+    private void onQueueChanged() {
+        channel.invokeMethod("onQueueChanged", queue.toMap());
+        queueChanged = true;
+        save(music.get());
+    }
 
-        if (service != null) {
-            service.showNotification(music);
+    private void skipToNext() {
+        if (queue.isEmpty()) {
+            player.playNext();
+        } else {
+            playItem(queue.next(false));
+        }
+    }
+
+    private void skipToPrevious() {
+        if (queue.isEmpty()) {
+            player.playPrevious();
+        } else {
+            playItem(queue.previous());
+        }
+    }
+
+    private void skipTo(Integer index) {
+        if (index != null) {
+            playItem(queue.skipTo(index));
         }
     }
 
+    private void pause() {
+        int position = player.getCurrentPosition();
+        int duration = player.getDuration();
+        Music current = update(music -> music.withPosition(position, duration)
+            .withState(Music.State.PAUSED));
+        player.pause();
+        showNotification(current);
+    }
+
+    private void resume() {
+        int position = player.getCurrentPosition();
+        int duration = player.getDuration();
+        Music current = update(music -> music.withPosition(position, duration)
+            .withState(Music.State.PLAYING));
+        player.resume();
+        showNotification(current);
+    }
+
     private void seek(@NonNull MethodCall call, @NonNull Result result) {
         Integer position = (Integer) call.arguments;
 
@@ -318,6 +1018,111 @@ public class MusicPlugin extends BroadcastReceiver implements
         result.success(position);
     }
 
+    private void prefetch(@NonNull MethodCall call) {
+        List<String> urls = call.argument("urls");
+        Number bytes = call.argument("bytes");
+        Number bytesPerSecond = call.argument("bytesPerSecond");
+        Integer concurrency = call.argument("concurrency");
+        Boolean unmeteredOnly = call.argument("unmeteredOnly");
+
+        prefetcher.prefetch(urls,
+            bytes != null ? bytes.longValue() : 0,
+            concurrency != null ? concurrency : 2,
+            bytesPerSecond != null ? bytesPerSecond.longValue() : 0,
+            unmeteredOnly != null && unmeteredOnly);
+    }
+
+    private void download(@NonNull MethodCall call) {
+        String url = call.argument("url");
+        String id = call.argument("id");
+        String checksum = call.argument("checksum");
+        String algorithm = call.argument("algorithm");
+        Number length = call.argument("length");
+
+        downloads.enqueue(url, id, checksum, algorithm,
+            length != null ? length.longValue() : -1);
+    }
+
+    private void configureCache(@NonNull MethodCall call) {
+        Number maxBytes = call.argument("maxBytes");
+        Integer maxFiles = call.argument("maxFiles");
+        String directory = call.argument("directory");
+        String key = call.argument("key");
+
+        cache.configure(
+            maxBytes != null ? maxBytes.longValue() : null,
+            maxFiles, directory, key);
+    }
+
+    private void configureDownloads(@NonNull MethodCall call) {
+        Integer connections = call.argument("connections");
+        Number segmentSize = call.argument("segmentSize");
+
+        cache.configureDownloads(
+            connections,
+            segmentSize != null ? segmentSize.longValue() : null);
+    }
+
+    private void setEngine(@NonNull MethodCall call) {
+        Integer engine = call.argument("engine");
+        Integer bufferMs = call.argument("bufferMs");
+        Integer startMs = call.argument("startMs");
+
+        player.setEngine(
+            engine != null ? engine : PlaybackEngine.MEDIA_PLAYER,
+            bufferMs != null ? bufferMs : 2000,
+            startMs != null ? startMs : 100);
+    }
+
+    private void setBufferWatermark(@NonNull MethodCall call) {
+        Number start = call.argument("start");
+        Number resume = call.argument("resume");
+        Integer bitrate = call.argument("bitrate");
+
+        player.setWatermarks(
+            start != null ? start.longValue() : 0,
+            resume != null ? resume.longValue() : 0,
+            bitrate != null ? bitrate : 0);
+    }
+
+    private void setStatsInterval(int interval) {
+        statsInterval = interval;
+        handler.removeCallbacks(statsReporter);
+
+        if (interval > 0) {
+            handler.postDelayed(statsReporter, interval);
+        }
+    }
+
+    /**
+     * Stream the spectrum (or waveform) of the playback, while Dart listens to it.
+     */
+    private void startVisualizer(@NonNull MethodCall call, @NonNull Result result) {
+        Integer mode = call.argument("mode");
+        Integer rate = call.argument("rate");
+        Integer bands = call.argument("bands");
+        Integer size = call.argument("size");
+
+        try {
+            visualizer.start(player.getAudioSessionId(),
+                mode != null ? mode : MusicVisualizer.FFT,
+                rate != null ? rate : 20,
+                bands != null ? bands : 0,
+                size != null ? size : 1024);
+            result.success(true);
+        } catch (RuntimeException e) {
+            // e.g. without the RECORD_AUDIO permission
+            result.error("visualizer", "Cannot start the visualizer: " + e.getMessage(), null);
+        }
+    }
+
+    private void setPositionInterval(@NonNull MethodCall call) {
+        Integer foreground = call.argument("foreground");
+        Integer background = call.argument("background");
+        Integer scrubbing = call.argument("scrubbing");
+        ticker.setIntervals(foreground, background, scrubbing);
+    }
+
     private void stop() {
         try {
             context.unregisterReceiver(receiver);
@@ -329,9 +1134,15 @@ public class MusicPlugin extends BroadcastReceiver implements
             service.cancel();
         }
 
-        music.isPlaying = false;
-        music.isLoading = false;
+        update(music -> music.withState(Music.State.IDLE));
         player.stop();
+
+        // stopped by the user, nothing to restore
+        if (store != null) {
+            store.clear();
+            savedTrack = null;
+            savedState = null;
+        }
     }
 
     private void cancel() {
@@ -347,14 +1158,24 @@ public class MusicPlugin extends BroadcastReceiver implements
             audioManager.abandonAudioFocusRequest(audioFocus);
         }
 
+        visualizer.stop();
         player.close();
-        music.session.release();
+        closePreviews();
+        setStatsInterval(0);
+        prefetcher.close();
+        downloads.close();
+        cache.close();
+        ticker.close();
+        artwork.close();
+        music.get().session.release();
     }
 
     @Override
     public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
         //Log.v("MusicPlayerPlugin", "onDetachedFromEngine");
         channel.setMethodCallHandler(null);
+        events.close();
+        visualizer.stop();
     }
 
     @Override
@@ -362,11 +1183,19 @@ public class MusicPlugin extends BroadcastReceiver implements
         //Log.v("MusicPlayerPlugin", "onAttachedToActivity");
         activity = binding.getActivity();
         context = activity.getApplicationContext();
-        music.session = new MediaSessionCompat(context, "MusicPlayerService");
+        MediaSessionCompat session = new MediaSessionCompat(context, "MusicPlayerService");
         // get notif from notification action (e.g., when seek to from seekbar)
-        music.session.setCallback(sessionCallback);
+        session.setCallback(sessionCallback);
+        update(music -> music.withSession(session));
 
         audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        artwork = new ArtworkLoader(context);
+        cache = new MusicCache(context);
+        cache.load();
+        store = new PlaybackStore(new File(context.getFilesDir(), PlaybackStore.FILE_NAME));
+        prefetcher = new MusicPrefetcher(context, cache);
+        downloads = new MusicDownloads(context, downloadListener);
+        cache.setDownloads(downloads);
 
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
             audioFocus = new AudioFocusRequest
@@ -380,7 +1209,8 @@ public class MusicPlugin extends BroadcastReceiver implements
             audioManager.requestAudioFocus(audioFocus);
         }
 
-        player = new MusicPlayer(channel, activity, onPositionUpdated);
+        player = new MusicPlayer(events, activity, cache, stats, listener);
+        ticker = player.ticker();
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(MusicAction.PAUSE);
@@ -391,6 +1221,10 @@ public class MusicPlugin extends BroadcastReceiver implements
         filter.addAction(MusicAction.CANCEL);
         context.registerReceiver(this, filter);
         activity.getApplication().registerActivityLifecycleCallbacks(this);
+
+        if (preferences().getBoolean(KEY_AUTO_WARM_UP, false)) {
+            warmUp();
+        }
     }
 
     @Override
@@ -422,18 +1256,20 @@ public class MusicPlugin extends BroadcastReceiver implements
                 break;
             case MusicAction.PREVIOUS:
                 Log.v("MusicPlayerPlugin", "onReceive PREVIOUS");
-                if (music.showPrevious) {
-                    music.isPlaying = true;
-                    player.playPrevious();
-                    service.showNotification(music);
+                if (music.get().showPrevious) {
+                    update(music -> music.withState(Music.State.PLAYING));
+                    skipToPrevious();
+                    // the queue has published the snapshot of the new track by now
+                    showNotification(music.get());
                 }
                 break;
             case MusicAction.NEXT:
                 Log.v("MusicPlayerPlugin", "onReceive NEXT");
-                if (music.showNext) {
-                    music.isPlaying = true;
-                    player.playNext();
-                    service.showNotification(music);
+                if (music.get().showNext) {
+                    update(music -> music.withState(Music.State.PLAYING));
+                    skipToNext();
+                    // the queue has published the snapshot of the new track by now
+                    showNotification(music.get());
                 }
                 break;
             case MusicAction.STOP:
@@ -458,11 +1294,17 @@ public class MusicPlugin extends BroadcastReceiver implements
     @Override
     public void onActivityResumed(@NonNull Activity activity) {
         //Log.v("MusicPlayerPlugin", "onActivityResumed");
+        if (activity == this.activity) {
+            ticker.setBackground(false);
+        }
     }
 
     @Override
     public void onActivityPaused(@NonNull Activity activity) {
         //Log.v("MusicPlayerPlugin", "onActivityPaused");
+        if (activity == this.activity) {
+            ticker.setBackground(true);
+        }
     }
 
     @Override
@@ -0,0 +1,179 @@
+package com.salkuadrat.music;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills the proxy cache with the head of upcoming tracks,
+ * by reading their first bytes through the proxy in the background.
+ */
+public class MusicPrefetcher {
+
+    private static final int TIMEOUT = 15000;
+
+    private final Context context;
+    private final MusicCache cache;
+    private final ThreadPoolExecutor executor;
+    private final List<Future<?>> tasks = new ArrayList<>();
+
+    // incremented on every prefetch / cancel, so running tasks know they are stale
+    private volatile int generation = 0;
+    private long throttleTime = 0;
+
+    MusicPrefetcher(Context context, MusicCache cache) {
+        this.context = context.getApplicationContext();
+        this.cache = cache;
+        this.executor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "MusicPrefetcher");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Prefetch the first bytes of every url, replacing any previous prefetch.
+     *
+     * @param bytes          how many bytes of each track to cache
+     * @param concurrency    how many tracks are fetched at the same time
+     * @param bytesPerSecond bandwidth budget shared by all tracks, 0 for unlimited
+     * @param unmeteredOnly  skip prefetching when the active network is metered
+     */
+    synchronized void prefetch(List<String> urls, long bytes, int concurrency,
+                               long bytesPerSecond, boolean unmeteredOnly) {
+        cancel();
+
+        if (urls == null || urls.isEmpty() || bytes <= 0) {
+            return;
+        }
+
+        if (isMetered()) {
+            if (unmeteredOnly) {
+                Log.v("MusicPrefetcher", "Skip prefetch on metered network");
+                return;
+            }
+
+            // only the very next track is worth the user's data
+            urls = urls.subList(0, 1);
+            concurrency = 1;
+        }
+
+        setConcurrency(Math.max(1, concurrency));
+        int generation = this.generation;
+
+        for (String url : urls) {
+            tasks.add(executor.submit(() -> fetch(url, bytes, bytesPerSecond, generation)));
+        }
+    }
+
+    synchronized void cancel() {
+        generation++;
+
+        for (Future<?> task : tasks) {
+            task.cancel(true);
+        }
+
+        tasks.clear();
+    }
+
+    private void setConcurrency(int concurrency) {
+        if (concurrency > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(concurrency);
+            executor.setCorePoolSize(concurrency);
+        } else {
+            executor.setCorePoolSize(concurrency);
+            executor.setMaximumPoolSize(concurrency);
+        }
+    }
+
+    private boolean isMetered() {
+        ConnectivityManager manager = (ConnectivityManager)
+            context.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        try {
+            return manager == null || manager.isActiveNetworkMetered();
+        } catch (SecurityException e) {
+            return true;
+        }
+    }
+
+    private boolean isStale(int generation) {
+        return generation != this.generation || Thread.currentThread().isInterrupted();
+    }
+
+    private void fetch(String url, long bytes, long bytesPerSecond, int generation) {
+        if (isStale(generation) || cache.isCached(url)) {
+            return;
+        }
+
+        HttpURLConnection connection = null;
+
+        try {
+            // reading through the proxy is what writes the bytes into its cache
+            connection = (HttpURLConnection) new URL(cache.getProxyUrl(url)).openConnection();
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+
+            try (InputStream input = connection.getInputStream()) {
+                byte[] buffer = new byte[16 * 1024];
+                long total = 0;
+                int read;
+
+                while (total < bytes && !isStale(generation)
+                    && (read = input.read(buffer)) != -1) {
+                    total += read;
+                    throttle(read, bytesPerSecond);
+                }
+
+                //Log.v("MusicPrefetcher", "Prefetched " + total + " bytes of " + url);
+            }
+        } catch (IOException e) {
+            Log.v("MusicPrefetcher", "Cannot prefetch " + url + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private void throttle(int read, long bytesPerSecond) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+
+        long wait;
+
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            // reserve the time slot of these bytes, allowing one second of burst
+            throttleTime = Math.max(throttleTime, now - 1000) + read * 1000L / bytesPerSecond;
+            wait = throttleTime - now;
+        }
+
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    void close() {
+        cancel();
+        executor.shutdownNow();
+    }
+}
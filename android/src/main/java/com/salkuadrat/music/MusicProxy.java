@@ -0,0 +1,501 @@
+package com.salkuadrat.music;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Local HTTP proxy every track is played through, serving it from its cache file.
+ *
+ * All connections are handled by a single selector thread. Any byte range is served
+ * right away: available bytes are sent from the cache file (transferTo), missing ones
+ * are fetched by the RangeFetcher from the requested position only,
+ * and sent as soon as they are written.
+ */
+public class MusicProxy implements Runnable, CacheFile.Listener {
+
+    interface Storage {
+        // cache file of the url
+        File file(String url);
+
+        // the url has been downloaded completely
+        void onComplete(String url, CacheFile file);
+
+        // the cache file of the url is not read anymore, and closed
+        void onClosed(String url, CacheFile file);
+    }
+
+    private static final String HOST = "127.0.0.1";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int REQUEST_SIZE = 8 * 1024;
+    // sent at most at once to a connection, so the others are not starved
+    private static final long CHUNK = 256 * 1024;
+    private static final String DEFAULT_MIME = "audio/mpeg";
+
+    private final Storage storage;
+    private final RangeFetcher fetcher;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+    private final int port;
+    private volatile boolean running = true;
+
+    // open cache files, with their url and the number of connections reading them
+    private final Map<String, CacheFile> files = new HashMap<>();
+    private final Map<CacheFile, String> urls = new HashMap<>();
+    private final Map<CacheFile, Integer> readers = new HashMap<>();
+
+    // connections waiting for data, handled on the selector thread only
+    private final Set<Connection> waiting = new HashSet<>();
+    private final AtomicBoolean changed = new AtomicBoolean(false);
+
+    MusicProxy(Storage storage) throws IOException {
+        this(storage, new RangeFetcher());
+    }
+
+    MusicProxy(Storage storage, RangeFetcher fetcher) throws IOException {
+        this.storage = storage;
+        this.fetcher = fetcher;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.socket().bind(new InetSocketAddress(InetAddress.getByName(HOST), 0));
+        this.server.configureBlocking(false);
+        this.server.register(selector, SelectionKey.OP_ACCEPT);
+        this.port = server.socket().getLocalPort();
+        this.thread = new Thread(this, "MusicProxy");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    String getProxyUrl(String url) {
+        try {
+            return "http://" + HOST + ":" + port + "/" + URLEncoder.encode(url, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return url;
+        }
+    }
+
+    void configureDownloads(int connections, long segmentSize) {
+        fetcher.configure(connections, segmentSize);
+    }
+
+    /**
+     * Bytes of the url available from `position` without a gap,
+     * -1 when its file is not open (the storage knows).
+     */
+    long available(String url, long position) {
+        CacheFile file = openFile(url);
+        return file != null ? file.available(position) : -1;
+    }
+
+    /**
+     * Total bytes of the url available in the cache, -1 when its file is not open.
+     */
+    long cachedBytes(String url) {
+        CacheFile file = openFile(url);
+        return file != null ? file.cachedBytes() : -1;
+    }
+
+    // the storage is never called with the lock held, it has its own
+    private synchronized CacheFile openFile(String url) {
+        return files.get(url);
+    }
+
+    synchronized boolean hasOpenFiles() {
+        return !files.isEmpty();
+    }
+
+    synchronized boolean isOpen(File file) {
+        for (CacheFile open : files.values()) {
+            if (open.file.equals(file)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onChanged(CacheFile file) {
+        String url = null;
+
+        if (file.isComplete()) {
+            synchronized (this) {
+                // reported once
+                url = urls.put(file, null);
+            }
+        }
+
+        if (url != null) {
+            storage.onComplete(url, file);
+        }
+
+        changed.set(true);
+        selector.wakeup();
+    }
+
+    private CacheFile open(String url) throws IOException {
+        File path = storage.file(url);
+
+        synchronized (this) {
+            CacheFile file = files.get(url);
+
+            if (file == null) {
+                file = new CacheFile(path);
+                file.setListener(this);
+                files.put(url, file);
+                urls.put(file, file.isComplete() ? null : url);
+                readers.put(file, 0);
+            }
+
+            readers.put(file, readers.get(file) + 1);
+            return file;
+        }
+    }
+
+    private void release(String url, CacheFile file) {
+        synchronized (this) {
+            Integer count = readers.get(file);
+
+            if (count == null) {
+                return;
+            }
+
+            if (count > 1) {
+                readers.put(file, count - 1);
+                return;
+            }
+
+            // nobody reads it anymore, stop downloading it
+            fetcher.cancel(file);
+            readers.remove(file);
+            urls.remove(file);
+            files.remove(url);
+            file.close();
+        }
+
+        storage.onClosed(url, file);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                break;
+            }
+
+            if (!running) {
+                break;
+            }
+
+            if (changed.getAndSet(false)) {
+                // let the waiting connections check their file again
+                for (Connection connection : new ArrayList<>(waiting)) {
+                    connection.resume();
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        ((Connection) key.attachment()).read();
+                    } else if (key.isWritable()) {
+                        ((Connection) key.attachment()).write();
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+            }
+        }
+
+        closeAll();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+
+        if (channel != null) {
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException ignored) {
+        }
+
+        fetcher.close();
+        Map<String, CacheFile> closed;
+
+        synchronized (this) {
+            closed = new HashMap<>(files);
+
+            for (CacheFile file : files.values()) {
+                file.close();
+            }
+
+            files.clear();
+            urls.clear();
+            readers.clear();
+        }
+
+        for (Map.Entry<String, CacheFile> entry : closed.entrySet()) {
+            storage.onClosed(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private class Connection {
+        final SocketChannel channel;
+        final ByteBuffer request = ByteBuffer.allocate(REQUEST_SIZE);
+        SelectionKey key;
+
+        String url;
+        CacheFile file;
+        boolean head = false;
+        boolean ranged = false;
+        long rangeStart = 0;
+        long rangeEnd = -1;
+
+        ByteBuffer headers;
+        long position;
+        long end;
+        boolean closed = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(request) < 0) {
+                close();
+                return;
+            }
+
+            String text = new String(request.array(), 0, request.position(), ASCII);
+            int headerEnd = text.indexOf("\r\n\r\n");
+
+            if (headerEnd < 0) {
+                if (!request.hasRemaining()) {
+                    throw new IOException("Request too large");
+                }
+                return;
+            }
+
+            parse(text.substring(0, headerEnd));
+            file = open(url);
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private void parse(String text) throws IOException {
+            String[] lines = text.split("\r\n");
+            String[] request = lines[0].split(" ");
+
+            if (request.length < 2 || request[1].length() < 2) {
+                throw new IOException("Bad request " + lines[0]);
+            }
+
+            head = "HEAD".equals(request[0]);
+            url = URLDecoder.decode(request[1].substring(1), "UTF-8");
+
+            for (String line : lines) {
+                int colon = line.indexOf(':');
+
+                if (colon < 0 || !line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    continue;
+                }
+
+                // bytes=start-[end], suffix ranges are served as a whole
+                String value = line.substring(colon + 1).trim();
+
+                if (value.startsWith("bytes=") && !value.startsWith("bytes=-")) {
+                    String[] range = value.substring(6).split("-", -1);
+
+                    try {
+                        rangeStart = Long.parseLong(range[0].trim());
+                        rangeEnd = range.length > 1 && !range[1].trim().isEmpty()
+                            ? Long.parseLong(range[1].trim())
+                            : -1;
+                        ranged = true;
+                    } catch (NumberFormatException e) {
+                        rangeStart = 0;
+                        rangeEnd = -1;
+                    }
+                }
+            }
+        }
+
+        void write() throws IOException {
+            if (headers == null) {
+                long length = file.length();
+
+                if (length < 0) {
+                    // the length comes with the first upstream response
+                    waitFor(rangeStart);
+                    return;
+                }
+
+                headers = headers(length);
+            }
+
+            if (headers.hasRemaining()) {
+                channel.write(headers);
+
+                if (headers.hasRemaining()) {
+                    return;
+                }
+            }
+
+            while (!head && position < end) {
+                long available = file.available(position);
+
+                if (available == 0) {
+                    waitFor(position);
+                    return;
+                }
+
+                long sent = file.transferTo(position,
+                    Math.min(CHUNK, Math.min(available, end - position)), channel);
+
+                if (sent == 0) {
+                    // socket buffer full, continue when writable
+                    return;
+                }
+
+                position += sent;
+            }
+
+            close();
+        }
+
+        private void waitFor(long position) throws IOException {
+            IOException error = file.error();
+
+            if (error != null) {
+                // forget the error, so another request tries again
+                file.setInfo(-1, null);
+                throw error;
+            }
+
+            fetcher.fetch(url, file, position);
+            waiting.add(this);
+            key.interestOps(0);
+        }
+
+        void resume() {
+            waiting.remove(this);
+
+            try {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } catch (CancelledKeyException e) {
+                close();
+            }
+        }
+
+        private ByteBuffer headers(long length) {
+            StringBuilder headers = new StringBuilder();
+
+            if (rangeStart >= length && length > 0) {
+                position = 0;
+                end = 0;
+                headers.append("HTTP/1.1 416 Range Not Satisfiable\r\n")
+                    .append("Content-Range: bytes */").append(length).append("\r\n")
+                    .append("Content-Length: 0\r\n");
+            } else {
+                long last = rangeEnd >= 0 ? Math.min(rangeEnd, length - 1) : length - 1;
+                position = rangeStart;
+                end = last + 1;
+                String mime = file.mime();
+
+                headers.append(ranged ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n")
+                    .append("Content-Type: ").append(mime != null ? mime : DEFAULT_MIME).append("\r\n")
+                    .append("Accept-Ranges: bytes\r\n")
+                    .append("Content-Length: ").append(end - position).append("\r\n");
+
+                if (ranged) {
+                    headers.append("Content-Range: bytes ")
+                        .append(position).append('-').append(last).append('/').append(length)
+                        .append("\r\n");
+                }
+            }
+
+            headers.append("Connection: close\r\n\r\n");
+            return ByteBuffer.wrap(headers.toString().getBytes(ASCII));
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            waiting.remove(this);
+
+            if (key != null) {
+                key.cancel();
+            }
+
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+
+            if (file != null) {
+                release(url, file);
+            }
+        }
+    }
+}
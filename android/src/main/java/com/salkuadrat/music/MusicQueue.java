@@ -0,0 +1,283 @@
+package com.salkuadrat.music;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Playback queue held natively, so skipping and advancing on completion
+ * don't need to go through Dart. Items are the same maps Dart sends to play.
+ */
+public class MusicQueue {
+
+    static final int REPEAT_OFF = 0;
+    static final int REPEAT_ONE = 1;
+    static final int REPEAT_ALL = 2;
+
+    private final List<Map<String, Object>> items = new ArrayList<>();
+    // play order, as indexes of items (identity when not shuffled)
+    private final List<Integer> order = new ArrayList<>();
+    private final Random random = new Random();
+
+    private int index = -1;
+    private boolean shuffle = false;
+    private int repeat = REPEAT_OFF;
+
+    boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    int size() {
+        return items.size();
+    }
+
+    int index() {
+        return index;
+    }
+
+    boolean isShuffle() {
+        return shuffle;
+    }
+
+    int repeat() {
+        return repeat;
+    }
+
+    Map<String, Object> current() {
+        return index >= 0 && index < items.size() ? items.get(index) : null;
+    }
+
+    void set(List<Map<String, Object>> items, int index) {
+        this.items.clear();
+        this.items.addAll(items);
+        this.index = items.isEmpty() ? -1 : Math.max(0, Math.min(index, items.size() - 1));
+        reorder();
+    }
+
+    void clear() {
+        items.clear();
+        order.clear();
+        index = -1;
+    }
+
+    void append(List<Map<String, Object>> items) {
+        int start = this.items.size();
+        this.items.addAll(items);
+
+        for (int i = start; i < this.items.size(); i++) {
+            order.add(shuffle ? randomPosition() : order.size(), i);
+        }
+
+        if (index < 0 && !this.items.isEmpty()) {
+            index = order.get(0);
+        }
+    }
+
+    void insert(int position, Map<String, Object> item) {
+        position = Math.max(0, Math.min(position, items.size()));
+        items.add(position, item);
+        shift(position, 1);
+
+        if (index >= position) {
+            index++;
+        }
+
+        order.add(shuffle ? randomPosition() : position, position);
+
+        if (index < 0) {
+            index = position;
+        }
+    }
+
+    void remove(int position) {
+        if (position < 0 || position >= items.size()) {
+            return;
+        }
+
+        items.remove(position);
+        order.remove(Integer.valueOf(position));
+        shift(position + 1, -1);
+
+        if (items.isEmpty()) {
+            index = -1;
+        } else if (index > position) {
+            index--;
+        } else if (index == position) {
+            // keep playing from the item which took its place
+            index = Math.min(position, items.size() - 1);
+        }
+    }
+
+    void move(int from, int to) {
+        if (from < 0 || from >= items.size() || to < 0 || to >= items.size() || from == to) {
+            return;
+        }
+
+        items.add(to, items.remove(from));
+
+        for (int i = 0; i < order.size(); i++) {
+            order.set(i, moved(order.get(i), from, to));
+        }
+
+        index = moved(index, from, to);
+
+        if (!shuffle) {
+            reorder();
+        }
+    }
+
+    void setShuffle(boolean shuffle) {
+        if (this.shuffle != shuffle) {
+            this.shuffle = shuffle;
+            reorder();
+        }
+    }
+
+    void setRepeat(int repeat) {
+        this.repeat = repeat;
+    }
+
+    boolean hasNext() {
+        return peek(1, false) != null;
+    }
+
+    boolean hasPrevious() {
+        return peek(-1, false) != null;
+    }
+
+    /**
+     * The item after the current one, without moving.
+     *
+     * @param auto whether it is an automatic advance on completion
+     *             (repeat one replays the current item)
+     */
+    Map<String, Object> peekNext(boolean auto) {
+        Integer next = peek(1, auto);
+        return next != null ? items.get(next) : null;
+    }
+
+    Map<String, Object> next(boolean auto) {
+        return moveTo(peek(1, auto));
+    }
+
+    Map<String, Object> previous() {
+        return moveTo(peek(-1, false));
+    }
+
+    Map<String, Object> skipTo(int position) {
+        return moveTo(position >= 0 && position < items.size() ? position : null);
+    }
+
+    /**
+     * The next items in play order, e.g. to prefetch them.
+     */
+    List<Map<String, Object>> upcoming(int count) {
+        List<Map<String, Object>> upcoming = new ArrayList<>();
+        int position = order.indexOf(index);
+
+        for (int i = 1; i <= count && position + i < order.size(); i++) {
+            upcoming.add(items.get(order.get(position + i)));
+        }
+
+        return upcoming;
+    }
+
+    /**
+     * All the items, in queue order (e.g. to persist the queue).
+     */
+    List<Map<String, Object>> items() {
+        return new ArrayList<>(items);
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("index", index);
+        map.put("length", items.size());
+        map.put("shuffle", shuffle);
+        map.put("repeat", repeat);
+
+        Map<String, Object> current = current();
+        map.put("id", current != null ? current.get("id") : null);
+        return map;
+    }
+
+    private Map<String, Object> moveTo(Integer next) {
+        if (next == null) {
+            return null;
+        }
+
+        index = next;
+        return items.get(index);
+    }
+
+    private Integer peek(int step, boolean auto) {
+        if (items.isEmpty() || index < 0) {
+            return null;
+        }
+
+        if (auto && repeat == REPEAT_ONE) {
+            return index;
+        }
+
+        int position = order.indexOf(index) + step;
+
+        if (position < 0 || position >= order.size()) {
+            if (repeat == REPEAT_OFF) {
+                return null;
+            }
+
+            position = (position + order.size()) % order.size();
+        }
+
+        return order.get(position);
+    }
+
+    private void reorder() {
+        order.clear();
+
+        for (int i = 0; i < items.size(); i++) {
+            order.add(i);
+        }
+
+        if (shuffle && index >= 0) {
+            // the current item stays first, the rest is shuffled after it
+            order.remove(Integer.valueOf(index));
+            Collections.shuffle(order, random);
+            order.add(0, index);
+        }
+    }
+
+    private int randomPosition() {
+        int position = order.indexOf(index) + 1;
+        return position + random.nextInt(order.size() - position + 1);
+    }
+
+    private void shift(int from, int delta) {
+        for (int i = 0; i < order.size(); i++) {
+            int value = order.get(i);
+
+            if (value >= from) {
+                order.set(i, value + delta);
+            }
+        }
+    }
+
+    private static int moved(int value, int from, int to) {
+        if (value == from) {
+            return to;
+        }
+
+        if (from < to && value > from && value <= to) {
+            return value - 1;
+        }
+
+        if (from > to && value >= to && value < from) {
+            return value + 1;
+        }
+
+        return value;
+    }
+}
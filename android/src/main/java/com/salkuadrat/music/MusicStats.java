@@ -0,0 +1,221 @@
+package com.salkuadrat.music;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Quality of experience metrics of the current track and of the whole session:
+ * prepare and first audio latency, rebuffers, buffered percentage,
+ * seek latency, errors and cache hits.
+ * The first play of the session is reported apart, cold or after a warm-up.
+ */
+public class MusicStats {
+
+    // buffered percentage is sampled at most once per second, for the last minute
+    private static final int MAX_SAMPLES = 60;
+
+    private String url;
+    private boolean fromCache = false;
+    private long playTime = 0;
+    private long preparedLatency = -1;
+    private long firstAudioLatency = -1;
+    private int rebuffers = 0;
+    private long rebufferDuration = 0;
+    private long rebufferStart = -1;
+    private int seeks = 0;
+    private long seekDuration = 0;
+    private long seekStart = -1;
+    private long lastSeekLatency = -1;
+    private int errors = 0;
+    private String lastError;
+    private int bufferedPercent = 0;
+    private long lastSample = 0;
+    private final List<int[]> bufferedSamples = new ArrayList<>();
+
+    // totals of the session
+    private int tracks = 0;
+    private int cacheHits = 0;
+    private int preparedCount = 0;
+    private long preparedTotal = 0;
+    private int firstAudioCount = 0;
+    private long firstAudioTotal = 0;
+    private int totalRebuffers = 0;
+    private long totalRebufferDuration = 0;
+    private int totalSeeks = 0;
+    private long totalSeekDuration = 0;
+    private int totalErrors = 0;
+
+    // first play of the session, and the warm-up before it
+    private long warmUpDuration = -1;
+    private boolean firstPlayWarm = false;
+    private long firstPlayLatency = -1;
+
+    private static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    synchronized void onPlay(String url, boolean fromCache) {
+        onBufferingEnd();
+
+        this.url = url;
+        this.fromCache = fromCache;
+        playTime = now();
+        preparedLatency = -1;
+        firstAudioLatency = -1;
+        rebuffers = 0;
+        rebufferDuration = 0;
+        seeks = 0;
+        seekDuration = 0;
+        seekStart = -1;
+        lastSeekLatency = -1;
+        errors = 0;
+        lastError = null;
+        bufferedPercent = 0;
+        lastSample = 0;
+        bufferedSamples.clear();
+
+        if (tracks == 0) {
+            firstPlayWarm = warmUpDuration >= 0;
+        }
+
+        tracks++;
+
+        if (fromCache) {
+            cacheHits++;
+        }
+    }
+
+    synchronized void onPrepared() {
+        if (preparedLatency < 0) {
+            preparedLatency = now() - playTime;
+            preparedCount++;
+            preparedTotal += preparedLatency;
+        }
+    }
+
+    synchronized void onFirstAudio() {
+        if (firstAudioLatency < 0) {
+            firstAudioLatency = now() - playTime;
+            firstAudioCount++;
+            firstAudioTotal += firstAudioLatency;
+
+            if (tracks == 1) {
+                firstPlayLatency = firstAudioLatency;
+            }
+        }
+    }
+
+    /**
+     * The warm-up finished, in `duration` ms.
+     */
+    synchronized void onWarmedUp(long duration) {
+        warmUpDuration = duration;
+    }
+
+    synchronized boolean hasFirstAudio() {
+        return firstAudioLatency >= 0;
+    }
+
+    synchronized void onBufferingStart() {
+        if (rebufferStart < 0) {
+            rebufferStart = now();
+            rebuffers++;
+            totalRebuffers++;
+        }
+    }
+
+    synchronized void onBufferingEnd() {
+        if (rebufferStart >= 0) {
+            long duration = now() - rebufferStart;
+            rebufferDuration += duration;
+            totalRebufferDuration += duration;
+            rebufferStart = -1;
+        }
+    }
+
+    synchronized void onBufferingUpdate(int percent) {
+        bufferedPercent = percent;
+        long now = now();
+
+        if (now - lastSample >= 1000) {
+            lastSample = now;
+            bufferedSamples.add(new int[]{(int) (now - playTime), percent});
+
+            if (bufferedSamples.size() > MAX_SAMPLES) {
+                bufferedSamples.remove(0);
+            }
+        }
+    }
+
+    synchronized void onSeek() {
+        seekStart = now();
+    }
+
+    synchronized void onSeekComplete() {
+        if (seekStart >= 0) {
+            lastSeekLatency = now() - seekStart;
+            seekStart = -1;
+            seeks++;
+            seekDuration += lastSeekLatency;
+            totalSeeks++;
+            totalSeekDuration += lastSeekLatency;
+        }
+    }
+
+    synchronized void onError(String error) {
+        errors++;
+        totalErrors++;
+        lastError = error;
+    }
+
+    synchronized Map<String, Object> toMap() {
+        long rebuffering = rebufferStart >= 0 ? now() - rebufferStart : 0;
+
+        List<List<Integer>> samples = new ArrayList<>();
+
+        for (int[] sample : bufferedSamples) {
+            List<Integer> pair = new ArrayList<>();
+            pair.add(sample[0]);
+            pair.add(sample[1]);
+            samples.add(pair);
+        }
+
+        Map<String, Object> track = new HashMap<>();
+        track.put("url", url);
+        track.put("fromCache", fromCache);
+        track.put("preparedLatency", preparedLatency);
+        track.put("firstAudioLatency", firstAudioLatency);
+        track.put("rebuffers", rebuffers);
+        track.put("rebufferDuration", rebufferDuration + rebuffering);
+        track.put("seeks", seeks);
+        track.put("seekLatency", lastSeekLatency);
+        track.put("averageSeekLatency", seeks > 0 ? seekDuration / seeks : -1);
+        track.put("errors", errors);
+        track.put("lastError", lastError);
+        track.put("bufferedPercent", bufferedPercent);
+        track.put("bufferedSamples", samples);
+
+        Map<String, Object> session = new HashMap<>();
+        session.put("tracks", tracks);
+        session.put("cacheHits", cacheHits);
+        session.put("averagePreparedLatency", preparedCount > 0 ? preparedTotal / preparedCount : -1);
+        session.put("averageFirstAudioLatency", firstAudioCount > 0 ? firstAudioTotal / firstAudioCount : -1);
+        session.put("rebuffers", totalRebuffers);
+        session.put("rebufferDuration", totalRebufferDuration + rebuffering);
+        session.put("seeks", totalSeeks);
+        session.put("averageSeekLatency", totalSeeks > 0 ? totalSeekDuration / totalSeeks : -1);
+        session.put("errors", totalErrors);
+        session.put("warmUpDuration", warmUpDuration);
+        session.put("firstPlayWarm", firstPlayWarm);
+        session.put("firstPlayLatency", firstPlayLatency);
+
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("track", track);
+        stats.put("session", session);
+        return stats;
+    }
+}
@@ -0,0 +1,214 @@
+package com.salkuadrat.music;
+
+import android.media.audiofx.Visualizer;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import io.flutter.plugin.common.BinaryMessenger;
+
+/**
+ * Streams the spectrum (FFT magnitudes) or the waveform of an audio session to Dart,
+ * on its own binary channel. Every message is little endian:
+ * int32 mode, int32 count, int64 timestamp (System.nanoTime, like the playback events),
+ * then count float32.
+ *
+ * The Visualizer is only created while Dart listens (see start and stop).
+ * Captures are polled into buffers allocated when it starts, and reduced
+ * natively to a few bands when asked, so nothing is allocated while streaming.
+ * Used on the main thread.
+ */
+public class MusicVisualizer implements Runnable {
+
+    static final String CHANNEL = "salkuadrat/musicplayer/visualizer";
+
+    // magnitudes from 0 to 1, from the lowest frequency to the highest
+    static final int FFT = 0;
+    // samples from -1 to 1
+    static final int WAVEFORM = 1;
+
+    private static final int HEADER_SIZE = 16;
+    // largest magnitude of an 8 bit FFT bin
+    private static final float MAX_MAGNITUDE = 128 * (float) Math.sqrt(2);
+
+    private final BinaryMessenger messenger;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private Visualizer visualizer;
+    private int mode = FFT;
+    private int interval = 50;
+
+    private byte[] capture;
+    private float[] magnitudes;
+    private float[] values;
+    // first FFT bin of each band (log spaced), and the end of the last one
+    private int[] edges;
+    private ByteBuffer message;
+
+    MusicVisualizer(BinaryMessenger messenger) {
+        this.messenger = messenger;
+    }
+
+    /**
+     * Start streaming the audio session, restarting with the new settings when running.
+     * The app needs the RECORD_AUDIO permission.
+     *
+     * @param rate  messages per second, up to the capture rate of the device
+     * @param bands number of values sent (log spaced bands for FFT), 0 for all of them
+     * @param size  capture size, a power of 2 within the range of the device
+     */
+    void start(int sessionId, int mode, int rate, int bands, int size) {
+        stop();
+
+        int[] range = Visualizer.getCaptureSizeRange();
+        int captureSize = Math.max(range[0], Math.min(Integer.highestOneBit(Math.max(size, 1)), range[1]));
+        int maxRate = Visualizer.getMaxCaptureRate() / 1000;
+
+        // throws without the permission, or when the session cannot be captured
+        visualizer = new Visualizer(sessionId);
+
+        try {
+            visualizer.setCaptureSize(captureSize);
+            visualizer.setEnabled(true);
+        } catch (RuntimeException e) {
+            stop();
+            throw e;
+        }
+
+        this.mode = mode;
+        this.interval = 1000 / Math.max(1, Math.min(rate, maxRate));
+        allocate(captureSize, bands);
+
+        handler.post(this);
+    }
+
+    private void allocate(int captureSize, int bands) {
+        int bins = captureSize / 2;
+        int count = mode == FFT ? bins + 1 : captureSize;
+
+        capture = new byte[captureSize];
+        magnitudes = new float[bins + 1];
+        values = new float[bands > 0 ? Math.min(bands, count) : count];
+        edges = null;
+
+        if (mode == FFT && bands > 0) {
+            // bins 1 to `bins` (without DC), spaced like the pitch is heard
+            edges = new int[values.length + 1];
+            edges[0] = 1;
+
+            for (int b = 1; b <= values.length; b++) {
+                int edge = (int) Math.round(Math.pow(bins + 1, (double) b / values.length));
+                edges[b] = Math.min(Math.max(edge, edges[b - 1] + 1), bins + 1);
+            }
+        }
+
+        message = ByteBuffer
+            .allocateDirect(HEADER_SIZE + values.length * 4)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void run() {
+        if (visualizer == null) {
+            return;
+        }
+
+        handler.postDelayed(this, interval);
+        int status = mode == FFT ? visualizer.getFft(capture) : visualizer.getWaveForm(capture);
+
+        if (status != Visualizer.SUCCESS) {
+            return;
+        }
+
+        if (mode == FFT) {
+            reduceFft();
+        } else {
+            reduceWaveform();
+        }
+
+        message.clear();
+        message.putInt(mode)
+            .putInt(values.length)
+            .putLong(System.nanoTime());
+
+        for (float value : values) {
+            message.putFloat(value);
+        }
+
+        // the message size is taken from its position, it is copied when sent
+        messenger.send(CHANNEL, message);
+    }
+
+    /**
+     * FFT bins are packed as DC, Nyquist (real parts), then real and imaginary pairs.
+     */
+    private void reduceFft() {
+        int bins = magnitudes.length - 1;
+        magnitudes[0] = Math.abs(capture[0]) / MAX_MAGNITUDE;
+        magnitudes[bins] = Math.abs(capture[1]) / MAX_MAGNITUDE;
+
+        for (int k = 1; k < bins; k++) {
+            float re = capture[2 * k];
+            float im = capture[2 * k + 1];
+            magnitudes[k] = (float) Math.sqrt(re * re + im * im) / MAX_MAGNITUDE;
+        }
+
+        if (edges == null) {
+            System.arraycopy(magnitudes, 0, values, 0, values.length);
+            return;
+        }
+
+        // the peak of each band
+        for (int b = 0; b < values.length; b++) {
+            float peak = 0;
+
+            for (int k = edges[b]; k < edges[b + 1]; k++) {
+                peak = Math.max(peak, magnitudes[k]);
+            }
+
+            values[b] = Math.min(peak, 1);
+        }
+    }
+
+    /**
+     * Samples are unsigned 8 bit, each value is the peak of its part of the capture.
+     */
+    private void reduceWaveform() {
+        int step = capture.length / values.length;
+
+        for (int i = 0; i < values.length; i++) {
+            float peak = 0;
+
+            for (int j = i * step; j < (i + 1) * step; j++) {
+                float sample = ((capture[j] & 0xff) - 128) / 128f;
+
+                if (Math.abs(sample) > Math.abs(peak)) {
+                    peak = sample;
+                }
+            }
+
+            values[i] = peak;
+        }
+    }
+
+    /**
+     * Stop streaming and release the Visualizer, e.g. when Dart stops listening.
+     */
+    void stop() {
+        handler.removeCallbacks(this);
+
+        if (visualizer != null) {
+            try {
+                visualizer.setEnabled(false);
+            } catch (IllegalStateException e) {
+                Log.v("MusicPlayerPlugin", "Visualizer: " + e.getMessage());
+            }
+
+            visualizer.release();
+            visualizer = null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.salkuadrat.music;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded ring buffer of decoded PCM, between the decoder and the AudioTrack writer.
+ * Writes block while the buffer is full, reads never block.
+ *
+ * Clearing (on seek) increments the epoch, so a write started before
+ * is dropped instead of mixing old samples with the new ones.
+ */
+public class PcmRingBuffer {
+
+    private final byte[] buffer;
+    private int read = 0;
+    private int size = 0;
+    private int epoch = 0;
+    private boolean ended = false;
+    private boolean closed = false;
+
+    PcmRingBuffer(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    synchronized int capacity() {
+        return buffer.length;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized int epoch() {
+        return epoch;
+    }
+
+    // no more data will be written (until the next clear)
+    synchronized boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Write all the remaining bytes of `src`, waiting for space when needed.
+     * Returns false when the buffer is cleared (epoch changed) or closed meanwhile.
+     */
+    synchronized boolean write(ByteBuffer src, int epoch) throws InterruptedException {
+        while (src.hasRemaining()) {
+            while (size == buffer.length && epoch == this.epoch && !closed) {
+                wait();
+            }
+
+            if (epoch != this.epoch || closed) {
+                return false;
+            }
+
+            int write = (read + size) % buffer.length;
+            int count = Math.min(src.remaining(),
+                Math.min(buffer.length - size, buffer.length - write));
+            src.get(buffer, write, count);
+            size += count;
+            notifyAll();
+        }
+
+        return true;
+    }
+
+    /**
+     * Read up to `length` bytes into `dst` without waiting.
+     * Returns -1 when the buffer is ended (or closed) and empty.
+     */
+    synchronized int read(byte[] dst, int offset, int length) {
+        if (size == 0) {
+            return ended || closed ? -1 : 0;
+        }
+
+        int count = 0;
+
+        while (count < length && size > 0) {
+            int chunk = Math.min(length - count, Math.min(size, buffer.length - read));
+            System.arraycopy(buffer, read, dst, offset + count, chunk);
+            read = (read + chunk) % buffer.length;
+            size -= chunk;
+            count += chunk;
+        }
+
+        notifyAll();
+        return count;
+    }
+
+    /**
+     * Wait until `bytes` are available (or the buffer is ended), at most `timeout` ms.
+     */
+    synchronized void await(int bytes, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+
+        while (size < Math.min(bytes, buffer.length) && !ended && !closed && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    synchronized void end() {
+        ended = true;
+        notifyAll();
+    }
+
+    synchronized void clear() {
+        read = 0;
+        size = 0;
+        ended = false;
+        epoch++;
+        notifyAll();
+    }
+
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
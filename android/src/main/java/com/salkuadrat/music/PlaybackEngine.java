@@ -0,0 +1,88 @@
+package com.salkuadrat.music;
+
+import java.io.IOException;
+
+/**
+ * Decodes and plays a single track, with the same lifecycle as MediaPlayer
+ * (setDataSource, prepareAsync, start, pause, seekTo, stop, reset, release).
+ * Callbacks are delivered on the looper of the thread that created the engine.
+ */
+public interface PlaybackEngine {
+
+    // android.media.MediaPlayer
+    int MEDIA_PLAYER = 0;
+    // MediaExtractor + MediaCodec + AudioTrack, with its own PCM buffer
+    int CODEC = 1;
+
+    interface Callback {
+        void onPrepared(PlaybackEngine engine);
+
+        void onCompletion(PlaybackEngine engine);
+
+        void onSeekComplete(PlaybackEngine engine);
+
+        // playback stalls (or continues) waiting for data
+        void onBufferingStart(PlaybackEngine engine);
+
+        void onBufferingEnd(PlaybackEngine engine);
+
+        void onBufferingUpdate(PlaybackEngine engine, int percent);
+
+        void onError(PlaybackEngine engine, int what, int extra);
+    }
+
+    // position (ms) at a given System.nanoTime(), and the playback speed
+    final class Timestamp {
+        long position;
+        float speed;
+    }
+
+    void setDataSource(String url) throws IOException;
+
+    void prepareAsync();
+
+    void start();
+
+    void pause();
+
+    void stop();
+
+    void reset();
+
+    void release();
+
+    void seekTo(int position);
+
+    /**
+     * Seek to the sync frame at or before `position` when `fast` (for scrubbing),
+     * to the exact position otherwise.
+     */
+    void seekTo(int position, boolean fast);
+
+    boolean isPlaying();
+
+    // 0 (silent) to 1 (full)
+    void setVolume(float volume);
+
+    /**
+     * Play in this audio session (e.g. the one a Visualizer is attached to),
+     * before setDataSource.
+     */
+    void setAudioSessionId(int sessionId);
+
+    int getCurrentPosition();
+
+    int getDuration();
+
+    /**
+     * Fill the timestamp with the position at `now`, when the engine knows it
+     * more precisely than getCurrentPosition. Returns false otherwise.
+     */
+    boolean getTimestamp(long now, Timestamp timestamp);
+
+    /**
+     * Start `next` as soon as this one completes (gapless), or null to cancel.
+     * `next` is an engine of the same type.
+     */
+    void setNext(PlaybackEngine next);
+}
@@ -0,0 +1,191 @@
+package com.salkuadrat.music;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.StandardMessageCodec;
+
+/**
+ * Playback session persisted to a small fixed layout file, mapped in memory,
+ * so it survives the process being killed and can be restored on the next start.
+ *
+ * The state, position and duration are written in place in the header,
+ * cheap enough to be done on every position tick. The session (current track
+ * and queue) is written to the inactive one of two slots, which then becomes
+ * the active one, so a write interrupted by the process death keeps the previous one.
+ */
+public class PlaybackStore {
+
+    static final String FILE_NAME = "playback.session";
+
+    private static final int MAGIC = 0x4d505342;
+    private static final int VERSION = 1;
+
+    // header
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_SLOT = 8;
+    private static final int OFFSET_STATE = 12;
+    private static final int OFFSET_POSITION = 16;
+    private static final int OFFSET_DURATION = 20;
+    private static final int OFFSET_SAVED_AT = 24;
+    private static final int OFFSET_CACHED = 32;
+    private static final int HEADER_SIZE = 64;
+
+    // each slot is the length of the encoded session, then the session
+    private static final int SLOT_SIZE = 32 * 1024;
+    private static final int SIZE = HEADER_SIZE + 2 * SLOT_SIZE;
+
+    private final File file;
+    private MappedByteBuffer buffer;
+    private boolean opened = false;
+
+    PlaybackStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Map the file (once), creating an empty session when it is missing or invalid.
+     */
+    private boolean open() {
+        if (opened) {
+            return buffer != null;
+        }
+
+        opened = true;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            boolean valid = raf.length() == SIZE;
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+
+            if (!valid || buffer.getInt(OFFSET_MAGIC) != MAGIC
+                || buffer.getInt(OFFSET_VERSION) != VERSION) {
+                buffer.putInt(OFFSET_MAGIC, MAGIC);
+                buffer.putInt(OFFSET_VERSION, VERSION);
+                buffer.putInt(OFFSET_SLOT, -1);
+            }
+        } catch (IOException e) {
+            Log.v("MusicPlayerPlugin", "Cannot open the playback store: " + e.getMessage());
+            buffer = null;
+        }
+
+        return buffer != null;
+    }
+
+    /**
+     * Save the playback state, in place in the header (nothing is allocated).
+     */
+    synchronized void saveState(int state, int position, int duration) {
+        if (!open()) {
+            return;
+        }
+
+        buffer.putInt(OFFSET_STATE, state);
+        buffer.putInt(OFFSET_POSITION, position);
+        buffer.putInt(OFFSET_DURATION, duration);
+        buffer.putLong(OFFSET_SAVED_AT, System.currentTimeMillis());
+    }
+
+    synchronized void saveCached(long cachedBytes) {
+        if (open()) {
+            buffer.putLong(OFFSET_CACHED, cachedBytes);
+        }
+    }
+
+    /**
+     * Save the session, encoded like the channel messages.
+     *
+     * @return false when it is too large for a slot (nothing is saved)
+     */
+    synchronized boolean saveSession(Map<String, Object> session) {
+        if (!open()) {
+            return true;
+        }
+
+        ByteBuffer encoded = StandardMessageCodec.INSTANCE.encodeMessage(session);
+
+        if (encoded.position() > 0) {
+            encoded.flip();
+        }
+
+        int length = encoded.remaining();
+
+        if (length > SLOT_SIZE - 4) {
+            return false;
+        }
+
+        int slot = buffer.getInt(OFFSET_SLOT) == 0 ? 1 : 0;
+        int offset = HEADER_SIZE + slot * SLOT_SIZE;
+
+        buffer.putInt(offset, length);
+        buffer.position(offset + 4);
+        buffer.put(encoded);
+        buffer.putInt(OFFSET_SLOT, slot);
+        return true;
+    }
+
+    /**
+     * The saved session with the saved state, position, duration, cached bytes
+     * and time (millis since epoch), or null when there is none.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized Map<String, Object> load() {
+        if (!open()) {
+            return null;
+        }
+
+        int slot = buffer.getInt(OFFSET_SLOT);
+
+        if (slot != 0 && slot != 1) {
+            return null;
+        }
+
+        int offset = HEADER_SIZE + slot * SLOT_SIZE;
+        int length = buffer.getInt(offset);
+
+        if (length <= 0 || length > SLOT_SIZE - 4) {
+            return null;
+        }
+
+        ByteBuffer encoded = buffer.duplicate();
+        encoded.position(offset + 4);
+        encoded.limit(offset + 4 + length);
+        Object decoded;
+
+        try {
+            decoded = StandardMessageCodec.INSTANCE.decodeMessage(encoded.slice());
+        } catch (RuntimeException e) {
+            Log.v("MusicPlayerPlugin", "Cannot read the playback session: " + e.getMessage());
+            return null;
+        }
+
+        if (!(decoded instanceof Map)) {
+            return null;
+        }
+
+        Map<String, Object> session = new HashMap<>((Map<String, Object>) decoded);
+        session.put("state", buffer.getInt(OFFSET_STATE));
+        session.put("position", buffer.getInt(OFFSET_POSITION));
+        session.put("duration", buffer.getInt(OFFSET_DURATION));
+        session.put("savedAt", buffer.getLong(OFFSET_SAVED_AT));
+        session.put("cachedBytes", buffer.getLong(OFFSET_CACHED));
+        return session;
+    }
+
+    /**
+     * Forget the saved session, e.g. when playback is stopped by the user.
+     */
+    synchronized void clear() {
+        if (open()) {
+            buffer.putInt(OFFSET_SLOT, -1);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.salkuadrat.music;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Single long-lived position ticker, posting on the playback looper.
+ * Nothing is allocated when playback is started, paused or seeked,
+ * the same runnable is just rescheduled.
+ * Intervals can be changed from any thread.
+ */
+public class PositionTicker implements Runnable {
+
+    private final Handler handler;
+
+    private Runnable task;
+    private boolean running = false;
+    private boolean background = false;
+    private boolean scrubbing = false;
+
+    private int foregroundInterval = 1000;
+    // nothing is drawn in background, ticks only keep the notification, the saved
+    // session and the drift check of the Dart anchor up to date
+    private int backgroundInterval = 5000;
+    private int scrubbingInterval = 250;
+
+    PositionTicker(Looper looper) {
+        this.handler = new Handler(looper);
+    }
+
+    synchronized void start(Runnable task) {
+        this.task = task;
+        running = true;
+        handler.removeCallbacks(this);
+        handler.post(this);
+    }
+
+    synchronized void stop() {
+        running = false;
+        handler.removeCallbacks(this);
+    }
+
+    synchronized void setIntervals(Integer foreground, Integer background, Integer scrubbing) {
+        if (foreground != null && foreground > 0) {
+            foregroundInterval = foreground;
+        }
+
+        if (background != null && background > 0) {
+            backgroundInterval = background;
+        }
+
+        if (scrubbing != null && scrubbing > 0) {
+            scrubbingInterval = scrubbing;
+        }
+
+        reschedule();
+    }
+
+    synchronized void setBackground(boolean background) {
+        if (this.background != background) {
+            this.background = background;
+            reschedule();
+        }
+    }
+
+    synchronized void setScrubbing(boolean scrubbing) {
+        if (this.scrubbing != scrubbing) {
+            this.scrubbing = scrubbing;
+            reschedule();
+        }
+    }
+
+    synchronized int interval() {
+        if (scrubbing) {
+            return scrubbingInterval;
+        }
+
+        return background ? backgroundInterval : foregroundInterval;
+    }
+
+    private void reschedule() {
+        if (running) {
+            handler.removeCallbacks(this);
+            handler.postDelayed(this, interval());
+        }
+    }
+
+    synchronized void close() {
+        stop();
+        task = null;
+    }
+
+    @Override
+    public void run() {
+        Runnable task;
+
+        synchronized (this) {
+            if (!running || this.task == null) {
+                return;
+            }
+
+            task = this.task;
+        }
+
+        task.run();
+
+        synchronized (this) {
+            // the task may have stopped (or restarted) the ticker
+            if (running) {
+                handler.removeCallbacks(this);
+                handler.postDelayed(this, interval());
+            }
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package com.salkuadrat.music;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Downloads the missing ranges of cache files, from the position a reader needs
+ * and skipping what is already cached.
+ *
+ * Each file has a reader download: a reader needing bytes close ahead of it
+ * just waits, a reader needing bytes elsewhere (e.g. after a seek) restarts it there.
+ * With more than one connection, the rest of the file is downloaded in parallel
+ * by segments (range requests of segmentSize), which wait while the reader
+ * download is behind. The reader download leaves a segment being downloaded
+ * to its segment download and continues after it, it only takes over segments
+ * nobody downloads yet, so no byte is requested twice.
+ */
+public class RangeFetcher {
+
+    static final int DEFAULT_CONNECTIONS = 1;
+    static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final int TIMEOUT = 15000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // the running download is kept when the position needed is at most this far ahead
+    private static final long LOOKAHEAD = 512 * 1024;
+    // segments wait until the reader download is this far past where it started
+    // (playback start or seek), so they do not delay it
+    private static final long PRIORITY_MARGIN = 256 * 1024;
+    private static final long PRIORITY_WAIT = 50;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "MusicFetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<CacheFile, Download> downloads = new HashMap<>();
+
+    private int connections;
+    private long segmentSize;
+
+    RangeFetcher() {
+        this(DEFAULT_CONNECTIONS, DEFAULT_SEGMENT_SIZE);
+    }
+
+    RangeFetcher(int connections, long segmentSize) {
+        configure(connections, segmentSize);
+    }
+
+    /**
+     * Number of parallel connections per file and size of the segments they download.
+     * Applied to the files opened after.
+     */
+    synchronized void configure(int connections, long segmentSize) {
+        this.connections = Math.max(1, connections);
+        this.segmentSize = segmentSize > 0 ? Math.max(segmentSize, BUFFER_SIZE) : DEFAULT_SEGMENT_SIZE;
+    }
+
+    /**
+     * Make sure the bytes of `file` from `position` are being downloaded.
+     */
+    synchronized void fetch(String url, CacheFile file, long position) {
+        Download download = downloads.get(file);
+
+        if (download == null) {
+            download = new Download(url, file, connections, segmentSize);
+            downloads.put(file, download);
+        }
+
+        download.need(position);
+    }
+
+    synchronized void cancel(CacheFile file) {
+        Download download = downloads.remove(file);
+
+        if (download != null) {
+            download.cancel();
+        }
+    }
+
+    synchronized void close() {
+        for (Download download : new ArrayList<>(downloads.values())) {
+            download.cancel();
+        }
+
+        downloads.clear();
+        executor.shutdownNow();
+    }
+
+    private class Download {
+        final String url;
+        final CacheFile file;
+        final int connections;
+        final long segmentSize;
+
+        // segment index -> worker downloading it
+        final Map<Long, Worker> owners = new HashMap<>();
+        final List<Worker> segments = new ArrayList<>();
+        Worker reader;
+        long needed = 0;
+        boolean cancelled = false;
+        // the server ignores ranges, segments are pointless
+        boolean unranged = false;
+
+        Download(String url, CacheFile file, int connections, long segmentSize) {
+            this.url = url;
+            this.file = file;
+            this.connections = connections;
+            this.segmentSize = segmentSize;
+        }
+
+        synchronized void need(long position) {
+            // written since it was found missing, the reader download may be past it
+            position = file.nextMissing(position);
+            needed = position;
+
+            if (cancelled || (reader != null && reader.covers(position))
+                || isComing(reader, position)) {
+                return;
+            }
+
+            if (reader != null) {
+                reader.cancel();
+                release(reader);
+            }
+
+            reader = new Worker(this, true, position);
+            executor.execute(reader);
+            notifyAll();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+
+            if (reader != null) {
+                reader.cancel();
+            }
+
+            for (Worker worker : segments) {
+                worker.cancel();
+            }
+
+            owners.clear();
+            notifyAll();
+        }
+
+        /**
+         * Start the segment downloads, once the length is known
+         * and the reader download has a head start.
+         */
+        synchronized void startSegments() {
+            if (cancelled || connections <= 1 || !segments.isEmpty() || file.length() <= 0) {
+                return;
+            }
+
+            for (int i = 1; i < connections; i++) {
+                Worker worker = new Worker(this, false, 0);
+                segments.add(worker);
+                executor.execute(worker);
+            }
+        }
+
+        // the reader download has no head start yet
+        synchronized boolean isBehind() {
+            return reader != null && !reader.done && reader.cursor < reader.start + PRIORITY_MARGIN;
+        }
+
+        synchronized void awaitReader(Worker worker) {
+            try {
+                while (!worker.cancelled && isBehind()) {
+                    wait(PRIORITY_WAIT);
+                }
+            } catch (InterruptedException e) {
+                worker.cancel();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Whether a segment download other than `worker` is about to write `position`.
+         */
+        synchronized boolean isComing(Worker worker, long position) {
+            Worker owner = owners.get(position / segmentSize);
+            return owner != null && owner != worker && !owner.cancelled && owner.covers(position);
+        }
+
+        synchronized void setUnranged() {
+            unranged = true;
+        }
+
+        /**
+         * The reader download takes the segment, whoever downloads it.
+         */
+        synchronized void take(Worker worker, long segment) {
+            if (worker.segment == segment) {
+                return;
+            }
+
+            release(worker);
+            owners.put(segment, worker);
+            worker.segment = segment;
+        }
+
+        /**
+         * Next segment with missing bytes nobody downloads, after the reader first.
+         * Returns -1 when there is none.
+         */
+        synchronized long claim(Worker worker) {
+            release(worker);
+            long length = file.length();
+
+            if (cancelled || unranged || length <= 0) {
+                return -1;
+            }
+
+            long count = (length + segmentSize - 1) / segmentSize;
+            long first = reader != null ? reader.cursor / segmentSize + 1 : needed / segmentSize;
+
+            for (long i = 0; i < count; i++) {
+                long segment = (first + i) % count;
+                long start = segment * segmentSize;
+                long end = Math.min(start + segmentSize, length);
+
+                if (!owners.containsKey(segment) && file.nextMissing(start) < end) {
+                    owners.put(segment, worker);
+                    worker.segment = segment;
+                    worker.cursor = file.nextMissing(start);
+                    return segment;
+                }
+            }
+
+            return -1;
+        }
+
+        synchronized boolean owns(Worker worker, long segment) {
+            return owners.get(segment) == worker;
+        }
+
+        synchronized void finished(Worker worker) {
+            release(worker);
+            segments.remove(worker);
+
+            if (reader == worker) {
+                reader = null;
+            }
+
+            if (worker.failed && !worker.priority) {
+                // the reader download may have left the rest of its segment to it
+                need(needed);
+            }
+
+            notifyAll();
+        }
+
+        // called with the lock held
+        private void release(Worker worker) {
+            if (worker.segment >= 0 && owners.get(worker.segment) == worker) {
+                owners.remove(worker.segment);
+            }
+
+            worker.segment = -1;
+        }
+    }
+
+    private class Worker implements Runnable {
+        final Download download;
+        final CacheFile file;
+        final boolean priority;
+        final long start;
+        volatile long cursor;
+        volatile boolean cancelled = false;
+        volatile boolean done = false;
+        volatile boolean failed = false;
+        // segment owned, guarded by the download lock
+        long segment = -1;
+
+        Worker(Download download, boolean priority, long position) {
+            this.download = download;
+            this.file = download.file;
+            this.priority = priority;
+            this.start = position;
+            this.cursor = position;
+        }
+
+        boolean covers(long position) {
+            return !done && position >= cursor && position <= cursor + LOOKAHEAD;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (priority) {
+                    readAhead();
+                } else {
+                    fillSegments();
+                }
+            } catch (IOException e) {
+                // a failed segment is downloaded again by the reader download
+                failed = true;
+
+                if (priority && !cancelled) {
+                    file.fail(e);
+                }
+            } finally {
+                done = true;
+                download.finished(this);
+            }
+        }
+
+        // from the position needed, up to the end of the file
+        private void readAhead() throws IOException {
+            long position = file.nextMissing(cursor);
+
+            while (!cancelled) {
+                position = skipComing(position);
+                long length = file.length();
+
+                if (length >= 0 && position >= length) {
+                    break;
+                }
+
+                // up to the next cached range (or the end)
+                long next = file.nextAvailable(position);
+                long end = next >= 0 ? next : length;
+                long reached = download(position, end);
+
+                length = file.length();
+
+                if (reached == position && !cancelled && file.available(position) == 0
+                    && !download.isComing(this, position) && (length < 0 || position < length)) {
+                    throw new IOException("No data from " + download.url + " at " + position);
+                }
+
+                position = file.nextMissing(reached);
+            }
+
+            // nothing left after the reader, the segments before it may still be missing
+            download.startSegments();
+        }
+
+        // the missing bytes segment downloads are writing are left to them
+        private long skipComing(long position) {
+            while (download.isComing(this, position)) {
+                long end = (position / download.segmentSize + 1) * download.segmentSize;
+                position = file.nextMissing(end);
+            }
+
+            return position;
+        }
+
+        private void fillSegments() throws IOException {
+            while (!cancelled) {
+                download.awaitReader(this);
+                long segment = download.claim(this);
+
+                if (segment < 0) {
+                    break;
+                }
+
+                long start = segment * download.segmentSize;
+                long end = Math.min(start + download.segmentSize, file.length());
+                long position = file.nextMissing(start);
+
+                while (!cancelled && position < end && download.owns(this, segment)) {
+                    long next = file.nextAvailable(position);
+                    long to = next >= 0 ? Math.min(next, end) : end;
+                    long reached = download(position, to);
+
+                    if (reached == position) {
+                        break;
+                    }
+
+                    position = file.nextMissing(reached);
+                }
+            }
+        }
+
+        /**
+         * Download [from, to) (to the end when `to` is -1), returns the position reached.
+         */
+        private long download(long from, long to) throws IOException {
+            HttpURLConnection connection =
+                (HttpURLConnection) new URL(download.url).openConnection();
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setRequestProperty("Range",
+                "bytes=" + from + "-" + (to > 0 ? String.valueOf(to - 1) : ""));
+
+            try {
+                int code = connection.getResponseCode();
+
+                if (code == 416) {
+                    // nothing after `from`, the length was unknown
+                    file.markEnd(from);
+                    return from;
+                }
+
+                if (code >= 400) {
+                    throw new IOException("HTTP " + code + " for " + download.url);
+                }
+
+                long position = from;
+                long total;
+                boolean ranged = code == HttpURLConnection.HTTP_PARTIAL;
+
+                if (ranged) {
+                    total = parseTotal(connection.getHeaderField("Content-Range"));
+                } else if (priority) {
+                    // ranges are not supported, the whole content comes from 0,
+                    // the bytes before `from` are skipped
+                    download.setUnranged();
+                    total = parseLong(connection.getHeaderField("Content-Length"));
+                    position = 0;
+                    to = -1;
+                } else {
+                    download.setUnranged();
+                    return from;
+                }
+
+                file.setInfo(total, connection.getContentType());
+                byte[] buffer = new byte[BUFFER_SIZE];
+
+                try (InputStream input = connection.getInputStream()) {
+                    while (!cancelled && (to < 0 || position < to)) {
+                        if (priority) {
+                            if (ranged && (file.available(position) > 0
+                                || download.isComing(this, position))) {
+                                // reached bytes a segment download wrote, or is writing
+                                break;
+                            }
+
+                            download.take(this, position / download.segmentSize);
+                        } else {
+                            download.awaitReader(this);
+
+                            if (cancelled || !download.owns(this, segment)) {
+                                // taken by the reader download
+                                break;
+                            }
+                        }
+
+                        int max = to < 0 ? buffer.length : (int) Math.min(buffer.length, to - position);
+                        int read = input.read(buffer, 0, max);
+
+                        if (read == -1) {
+                            if (total < 0) {
+                                file.markEnd(position);
+                            }
+                            break;
+                        }
+
+                        // the unranged response may start before `from` (already cached)
+                        int skip = (int) Math.max(0, Math.min(read, from - position));
+
+                        if (read > skip) {
+                            file.write(position + skip, ByteBuffer.wrap(buffer, skip, read - skip));
+                        }
+
+                        position += read;
+                        // still at `from` while skipping, so the reader needing it
+                        // does not restart the download
+                        cursor = Math.max(position, from);
+
+                        if (priority && !download.isBehind()) {
+                            download.startSegments();
+                        }
+                    }
+                }
+
+                return position;
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    // "bytes 0-99/1000" -> 1000, -1 when unknown
+    static long parseTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+
+        int slash = contentRange.lastIndexOf('/');
+        return slash >= 0 ? parseLong(contentRange.substring(slash + 1)) : -1;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value != null ? Long.parseLong(value.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
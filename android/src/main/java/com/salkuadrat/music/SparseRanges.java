@@ -0,0 +1,115 @@
+package com.salkuadrat.music;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sorted, non-overlapping byte ranges [start, end) available in a cache file.
+ * Adjacent and overlapping ranges are merged. Not thread safe.
+ */
+public class SparseRanges {
+
+    // start -> end (exclusive)
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    void add(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+
+        Map.Entry<Long, Long> after = ranges.ceilingEntry(start);
+
+        while (after != null && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            ranges.remove(after.getKey());
+            after = ranges.ceilingEntry(start);
+        }
+
+        ranges.put(start, end);
+    }
+
+    void add(SparseRanges other) {
+        for (Map.Entry<Long, Long> range : other.ranges.entrySet()) {
+            add(range.getKey(), range.getValue());
+        }
+    }
+
+    /**
+     * Bytes available from `position` without a gap.
+     */
+    long available(long position) {
+        Map.Entry<Long, Long> range = ranges.floorEntry(position);
+        return range != null && range.getValue() > position ? range.getValue() - position : 0;
+    }
+
+    boolean contains(long start, long end) {
+        return available(start) >= end - start;
+    }
+
+    /**
+     * First byte from `position` which is not available.
+     */
+    long nextMissing(long position) {
+        return position + available(position);
+    }
+
+    /**
+     * Start of the first range after `position`, or -1 when there is none.
+     */
+    long nextAvailable(long position) {
+        Long start = ranges.higherKey(position);
+        return start != null ? start : -1;
+    }
+
+    // total of the available bytes
+    long total() {
+        long total = 0;
+
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            total += range.getValue() - range.getKey();
+        }
+
+        return total;
+    }
+
+    int count() {
+        return ranges.size();
+    }
+
+    void clear() {
+        ranges.clear();
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(ranges.size());
+
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            out.writeLong(range.getKey());
+            out.writeLong(range.getValue());
+        }
+    }
+
+    void read(DataInputStream in) throws IOException {
+        ranges.clear();
+        int count = in.readInt();
+
+        for (int i = 0; i < count; i++) {
+            add(in.readLong(), in.readLong());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return ranges.toString();
+    }
+}
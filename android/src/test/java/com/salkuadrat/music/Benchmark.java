@@ -0,0 +1,164 @@
+package com.salkuadrat.music;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Minimal microbenchmark runner for the hot paths, running in the JVM
+ * (with Robolectric shadows for the Android classes).
+ *
+ * Each benchmark is warmed up, then measured in time (ns/op) and
+ * allocations (bytes/op) on the current thread. Results are written to
+ * `build/benchmark/results.properties`, in the same format as the baseline
+ * checked in at `src/test/resources/benchmark/baseline.properties`.
+ *
+ * Allocations are stable across machines, so a regression over the
+ * tolerance fails the benchmark (a benchmark without baseline is only reported,
+ * until it is recorded with `-Pbenchmark.record`). Time is only reported,
+ * compare it with the baseline recorded on the same machine.
+ */
+class Benchmark {
+
+    interface Op {
+        void run(int i) throws Exception;
+    }
+
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 10000;
+    private static final String BASELINE = "/benchmark/baseline.properties";
+
+    private static final Properties results = new Properties();
+    private static final List<String> regressions = new ArrayList<>();
+
+    /**
+     * Run the benchmark named [name], returns the allocated bytes per op.
+     */
+    static long measure(String name, Op op) throws Exception {
+        return measure(name, WARMUP, ITERATIONS, op);
+    }
+
+    static long measure(String name, int warmup, int iterations, Op op) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            op.run(i);
+        }
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++) {
+            op.run(warmup + i);
+        }
+
+        long time = (System.nanoTime() - start) / iterations;
+        long bytes = Math.max(0, allocatedBytes() - allocated) / iterations;
+
+        System.out.println(String.format(Locale.US,
+            "benchmark %-40s %10d ns/op %8d B/op", name, time, bytes));
+
+        report(name, time, bytes);
+        return bytes;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return 0;
+    }
+
+    private static synchronized void report(String name, long time, long bytes) throws IOException {
+        results.setProperty(name + ".time", String.valueOf(time));
+        results.setProperty(name + ".bytes", String.valueOf(bytes));
+        write();
+
+        if (Boolean.getBoolean("benchmark.record")) {
+            return;
+        }
+
+        Properties baseline = baseline();
+        String value = baseline.getProperty(name + ".bytes");
+
+        if (value == null) {
+            System.out.println("benchmark " + name + " has no baseline, record it with"
+                + " -Pbenchmark.record and check in build/benchmark/results.properties");
+            return;
+        }
+
+        double tolerance = Double.parseDouble(System.getProperty("benchmark.tolerance", "1.5"));
+        long expected = Long.parseLong(value.trim());
+
+        // a few bytes of noise (e.g. from the shadows) on small values are not a regression
+        if (bytes > expected * tolerance && bytes - expected > 64) {
+            regressions.add(name + ": " + bytes + " B/op, baseline " + expected + " B/op");
+        }
+    }
+
+    /**
+     * Fail if any benchmark run so far allocates more than its baseline.
+     */
+    static synchronized void check() {
+        if (!regressions.isEmpty()) {
+            String message = "Allocation regressions:\n"
+                + String.join("\n", regressions);
+            regressions.clear();
+            fail(message);
+        }
+    }
+
+    private static Properties baseline() throws IOException {
+        Properties baseline = new Properties();
+
+        try (InputStream input = Benchmark.class.getResourceAsStream(BASELINE)) {
+            if (input != null) {
+                baseline.load(input);
+            }
+        }
+
+        return baseline;
+    }
+
+    private static void write() throws IOException {
+        String output = System.getProperty("benchmark.output");
+
+        if (output == null) {
+            return;
+        }
+
+        File file = new File(output);
+        File dir = file.getParentFile();
+
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            return;
+        }
+
+        Properties merged = new Properties();
+
+        // results of the other benchmark classes of the same run
+        if (file.exists()) {
+            try (InputStream input = new FileInputStream(file)) {
+                merged.load(input);
+            }
+        }
+
+        merged.putAll(results);
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            merged.store(out, "ns/op (time) and B/op (bytes), copy to src/test/resources/benchmark/baseline.properties");
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.salkuadrat.music;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Index persisted in its log, reloaded as a new plugin start would.
+ */
+public class CacheIndexTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("index").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        directory.delete();
+    }
+
+    @Test
+    public void reloadsEntriesInUseOrder() {
+        CacheIndex index = new CacheIndex(directory);
+        index.load();
+
+        SparseRanges ranges = new SparseRanges();
+        ranges.add(0, 100);
+        ranges.add(500, 700);
+
+        index.put("a", "http://host/a.mp3", 1000, true, null, 1);
+        index.put("b", "http://host/b.mp3", 2000, false, ranges, 2);
+        index.put("c", "http://host/c.mp3", 300, true, null, 3);
+        index.touch("a", 4);
+        index.remove("c");
+        index.close();
+
+        CacheIndex loaded = new CacheIndex(directory);
+        loaded.load();
+
+        assertEquals(2, loaded.count());
+        assertEquals(1000 + 300, loaded.bytes());
+        assertNull(loaded.get("c"));
+
+        CacheIndex.Entry b = loaded.get("b");
+        assertFalse(b.complete);
+        assertEquals(100, b.available(0));
+        assertEquals(150, b.available(550));
+        assertEquals("http://host/b.mp3", b.url);
+
+        List<CacheIndex.Entry> entries = loaded.leastRecentlyUsed();
+        assertEquals("b", entries.get(0).name);
+        assertEquals("a", entries.get(1).name);
+        assertEquals(4, entries.get(1).lastAccess);
+    }
+
+    @Test
+    public void compactsTheLog() {
+        CacheIndex index = new CacheIndex(directory);
+        index.load();
+        index.put("a", "http://host/a.mp3", 1000, true, null, 0);
+
+        for (int i = 1; i < 10000; i++) {
+            index.touch("a", i);
+        }
+
+        index.close();
+
+        // one entry, not ten thousand records
+        assertTrue(new File(directory, CacheIndex.LOG_NAME).length() < 32 * 1024);
+
+        CacheIndex loaded = new CacheIndex(directory);
+        loaded.load();
+        assertEquals(9999, loaded.get("a").lastAccess);
+    }
+
+    @Test
+    public void buildsFromTheFilesWithoutLog() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, "complete"), "rw")) {
+            file.setLength(1234);
+        }
+
+        CacheIndex index = new CacheIndex(directory);
+        index.load();
+
+        assertEquals(1, index.count());
+        assertEquals(1234, index.bytes());
+        assertTrue(index.get("complete").complete);
+        assertTrue(new File(directory, CacheIndex.LOG_NAME).exists());
+    }
+}
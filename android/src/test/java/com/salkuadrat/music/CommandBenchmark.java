@@ -0,0 +1,94 @@
+package com.salkuadrat.music;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.flutter.plugin.common.MethodCall;
+
+/**
+ * Commands sent from Dart: reading the arguments of prepare / play,
+ * and the queue commands.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class CommandBenchmark {
+
+    private static Map<String, Object> item(int i) {
+        Map<String, Object> args = new HashMap<>();
+        args.put("id", String.valueOf(i));
+        args.put("title", "Title " + i);
+        args.put("artist", "Artist");
+        args.put("album", "Album");
+        args.put("url", "https://example.com/music/" + i + ".mp3");
+        args.put("imageUrl", "https://example.com/image/" + i + ".jpg");
+        args.put("duration", 240000);
+        args.put("showPrevious", true);
+        args.put("showNext", true);
+        return args;
+    }
+
+    private static List<Map<String, Object>> items(int count) {
+        List<Map<String, Object>> items = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            items.add(item(i));
+        }
+
+        return items;
+    }
+
+    @After
+    public void tearDown() {
+        Benchmark.check();
+    }
+
+    @Test
+    public void readArguments() throws Exception {
+        MethodCall call = new MethodCall("play", item(1));
+        Music music = new Music();
+
+        Benchmark.measure("command.readArguments", i -> {
+            music.withTrack(call.arguments());
+        });
+    }
+
+    @Test
+    public void setQueue() throws Exception {
+        MusicQueue queue = new MusicQueue();
+        List<Map<String, Object>> items = items(100);
+
+        Benchmark.measure("command.setQueue100", i -> {
+            queue.set(items, i % 100);
+        });
+    }
+
+    @Test
+    public void shuffleQueue() throws Exception {
+        MusicQueue queue = new MusicQueue();
+        queue.set(items(100), 0);
+
+        Benchmark.measure("command.shuffleQueue100", i -> {
+            queue.setShuffle(i % 2 == 0);
+        });
+    }
+
+    @Test
+    public void queueChanged() throws Exception {
+        MusicQueue queue = new MusicQueue();
+        queue.set(items(100), 0);
+
+        // the map sent to Dart on every queue change
+        Benchmark.measure("command.queueChanged", i -> {
+            queue.skipTo(i % 100);
+            queue.toMap();
+        });
+    }
+}
@@ -0,0 +1,265 @@
+package com.salkuadrat.music;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local proxy against a local HTTP server standing for the music host,
+ * which counts the requests and bytes it sends.
+ */
+public class MusicProxyTest {
+
+    private static final int SIZE = 3 * 1024 * 1024 + 123;
+    private static final int CHUNK = 16 * 1024;
+
+    private final byte[] content = new byte[SIZE];
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private HttpServer server;
+    private File directory;
+    private MusicProxy proxy;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(content);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/track.mp3", exchange -> {
+            requests.incrementAndGet();
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            int start = 0;
+            int end = SIZE - 1;
+
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring(6).split("-", -1);
+                start = Integer.parseInt(bounds[0]);
+
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Integer.parseInt(bounds[1]));
+                }
+
+                exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + end + "/" + SIZE);
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "audio/mpeg");
+            exchange.sendResponseHeaders(range != null ? 206 : 200, end - start + 1);
+
+            try (OutputStream output = exchange.getResponseBody()) {
+                for (int position = start; position <= end; position += CHUNK) {
+                    int count = Math.min(CHUNK, end + 1 - position);
+                    // counted first, so it is up to date when the client has read them
+                    bytesSent.addAndGet(count);
+                    output.write(content, position, count);
+                    // a connection is limited, like on a high latency link
+                    Thread.sleep(1);
+                }
+            } catch (IOException ignored) {
+                // the proxy stopped reading
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        // a host ignoring Range, always sending the whole content
+        server.createContext("/unranged.mp3", exchange -> {
+            requests.incrementAndGet();
+            exchange.getResponseHeaders().set("Content-Type", "audio/mpeg");
+            exchange.sendResponseHeaders(200, SIZE);
+
+            try (OutputStream output = exchange.getResponseBody()) {
+                for (int position = 0; position < SIZE; position += CHUNK) {
+                    int count = Math.min(CHUNK, SIZE - position);
+                    bytesSent.addAndGet(count);
+                    output.write(content, position, count);
+                }
+            } catch (IOException ignored) {
+                // the proxy stopped reading
+            }
+        });
+        // one thread per connection, as the proxy downloads in parallel
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/track.mp3";
+        directory = Files.createTempDirectory("music").toFile();
+        proxy = proxy(new RangeFetcher());
+    }
+
+    private MusicProxy proxy(RangeFetcher fetcher) throws IOException {
+        return new MusicProxy(new MusicProxy.Storage() {
+            @Override
+            public File file(String url) {
+                return new File(directory, "track");
+            }
+
+            @Override
+            public void onComplete(String url, CacheFile file) {
+            }
+
+            @Override
+            public void onClosed(String url, CacheFile file) {
+            }
+        }, fetcher);
+    }
+
+    @After
+    public void tearDown() {
+        proxy.shutdown();
+        server.stop(0);
+
+        File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        directory.delete();
+    }
+
+    private byte[] read(String range) throws IOException {
+        return read(url, range);
+    }
+
+    private byte[] read(String url, String range) throws IOException {
+        HttpURLConnection connection =
+            (HttpURLConnection) new URL(proxy.getProxyUrl(url)).openConnection();
+
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+
+        try (InputStream input = connection.getInputStream()) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[32 * 1024];
+            int read;
+
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+
+            return output.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void awaitClosed() throws InterruptedException {
+        // the file is closed (and its index saved) when the last reader is gone
+        for (int i = 0; i < 100 && proxy.isOpen(new File(directory, "track")); i++) {
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void servesTheWholeContent() throws Exception {
+        assertArrayEquals(content, read(null));
+        awaitClosed();
+
+        File file = new File(directory, "track");
+        assertEquals(SIZE, file.length());
+        assertFalse(CacheFile.index(file).exists());
+    }
+
+    @Test
+    public void fetchesOnlyTheMissingBytes() throws Exception {
+        int start = 2 * 1024 * 1024;
+        byte[] tail = read("bytes=" + start + "-");
+        assertArrayEquals(Arrays.copyOfRange(content, start, SIZE), tail);
+        assertEquals(SIZE - start, bytesSent.get());
+        awaitClosed();
+
+        // the tail is kept in the index, only the head is downloaded now
+        File file = new File(directory, "track");
+        assertTrue(CacheFile.index(file).exists());
+        assertEquals(SIZE - start, CacheFile.cachedBytes(file));
+
+        assertArrayEquals(content, read(null));
+        assertEquals(SIZE, bytesSent.get());
+    }
+
+    @Test
+    public void servesCachedBytesWithoutNetwork() throws Exception {
+        read(null);
+        awaitClosed();
+        int before = requests.get();
+
+        byte[] range = read("bytes=1000-1999");
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 2000), range);
+        assertEquals(before, requests.get());
+    }
+
+    @Test
+    public void downloadsSegmentsInParallel() throws Exception {
+        proxy.shutdown();
+        proxy = proxy(new RangeFetcher(4, 256 * 1024));
+
+        assertArrayEquals(content, read(null));
+        awaitClosed();
+
+        File file = new File(directory, "track");
+        assertFalse(CacheFile.index(file).exists());
+        assertTrue(requests.get() > 1);
+        // a segment reached by the reader download is given up, not downloaded twice
+        assertTrue(bytesSent.get() < SIZE * 3 / 2);
+    }
+
+    @Test(timeout = 10000)
+    public void skipsTheCachedHeadOfAnUnrangedResponse() throws Exception {
+        // the head is cached (e.g. played before a seek), the host ignores Range
+        int start = 1024 * 1024;
+        CacheFile file = new CacheFile(new File(directory, "track"));
+        file.setInfo(SIZE, "audio/mpeg");
+        file.write(0, ByteBuffer.wrap(content, 0, start));
+        file.close();
+
+        String unranged = url.replace("track.mp3", "unranged.mp3");
+        byte[] tail = read(unranged, "bytes=" + start + "-");
+
+        assertArrayEquals(Arrays.copyOfRange(content, start, SIZE), tail);
+        // one whole response, not a request loop
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void mergesRanges() {
+        SparseRanges ranges = new SparseRanges();
+        ranges.add(100, 200);
+        ranges.add(300, 400);
+        ranges.add(150, 300);
+
+        assertEquals(1, ranges.count());
+        assertEquals(300, ranges.total());
+        assertEquals(0, ranges.available(50));
+        assertEquals(250, ranges.available(150));
+        assertEquals(400, ranges.nextMissing(100));
+        assertEquals(100, ranges.nextAvailable(0));
+    }
+}
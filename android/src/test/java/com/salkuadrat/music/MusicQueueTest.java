@@ -0,0 +1,164 @@
+package com.salkuadrat.music;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Moving through the native queue, with shuffle and repeat,
+ * and editing it while it plays.
+ */
+public class MusicQueueTest {
+
+    private MusicQueue queue;
+
+    private static Map<String, Object> item(int id) {
+        Map<String, Object> item = new HashMap<>();
+        item.put("id", String.valueOf(id));
+        return item;
+    }
+
+    private static List<Map<String, Object>> items(int count) {
+        List<Map<String, Object>> items = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            items.add(item(i));
+        }
+
+        return items;
+    }
+
+    private static String id(Map<String, Object> item) {
+        return item != null ? (String) item.get("id") : null;
+    }
+
+    @Before
+    public void setUp() {
+        queue = new MusicQueue();
+        queue.set(items(5), 0);
+    }
+
+    @Test
+    public void movesInOrder() {
+        assertEquals("0", id(queue.current()));
+        assertFalse(queue.hasPrevious());
+        assertEquals("1", id(queue.next(false)));
+        assertEquals("2", id(queue.next(true)));
+        assertEquals("1", id(queue.previous()));
+        assertEquals("4", id(queue.skipTo(4)));
+
+        // the end of the queue, nothing after it without repeat
+        assertFalse(queue.hasNext());
+        assertNull(queue.next(true));
+        assertEquals(4, queue.index());
+    }
+
+    @Test
+    public void repeatsTheQueue() {
+        queue.setRepeat(MusicQueue.REPEAT_ALL);
+        queue.skipTo(4);
+
+        assertEquals("0", id(queue.peekNext(true)));
+        assertEquals("0", id(queue.next(false)));
+        assertEquals("4", id(queue.previous()));
+    }
+
+    @Test
+    public void repeatsOneOnCompletionOnly() {
+        queue.setRepeat(MusicQueue.REPEAT_ONE);
+
+        // completion replays it, skipping moves on
+        assertEquals("0", id(queue.next(true)));
+        assertEquals("1", id(queue.next(false)));
+    }
+
+    @Test
+    public void shufflesAfterTheCurrentItem() {
+        queue.skipTo(2);
+        queue.setShuffle(true);
+
+        Set<String> played = new HashSet<>();
+        played.add(id(queue.current()));
+
+        while (queue.hasNext()) {
+            played.add(id(queue.next(false)));
+        }
+
+        // every item once, starting from the current one
+        assertEquals(5, played.size());
+        assertFalse(queue.hasNext());
+
+        // back in queue order, from the item playing
+        queue.setShuffle(false);
+        assertEquals(4 - queue.index(), queue.upcoming(5).size());
+    }
+
+    @Test
+    public void keepsTheCurrentItemWhenEdited() {
+        queue.skipTo(2);
+
+        queue.insert(0, item(10));
+        assertEquals("2", id(queue.current()));
+        assertEquals(3, queue.index());
+
+        queue.move(3, 0);
+        assertEquals("2", id(queue.current()));
+        assertEquals(0, queue.index());
+        assertEquals("10", id(queue.peekNext(false)));
+
+        queue.remove(4);
+        assertEquals("2", id(queue.current()));
+        assertEquals(5, queue.size());
+    }
+
+    @Test
+    public void removingTheCurrentItemPlaysTheOneAfter() {
+        queue.skipTo(2);
+        queue.remove(2);
+
+        assertEquals("3", id(queue.current()));
+
+        queue.skipTo(3);
+        queue.remove(3);
+
+        // it was the last one, the one before it takes its place
+        assertEquals("3", id(queue.current()));
+    }
+
+    @Test
+    public void appendsToAnEmptyQueue() {
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.current());
+        assertNull(queue.next(false));
+
+        queue.append(items(2));
+        assertEquals("0", id(queue.current()));
+        assertEquals(Collections.singletonList(item(1)), queue.upcoming(5));
+    }
+
+    @Test
+    public void reportsItsState() {
+        queue.skipTo(1);
+        queue.setRepeat(MusicQueue.REPEAT_ALL);
+        Map<String, Object> state = queue.toMap();
+
+        assertEquals(1, state.get("index"));
+        assertEquals(5, state.get("length"));
+        assertEquals(false, state.get("shuffle"));
+        assertEquals(MusicQueue.REPEAT_ALL, state.get("repeat"));
+        assertEquals("1", state.get("id"));
+    }
+}
@@ -0,0 +1,140 @@
+package com.salkuadrat.music;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Metrics of a track and of the session, on the paused Robolectric clock.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class MusicStatsTest {
+
+    private MusicStats stats;
+
+    private static void advance(long millis) {
+        ShadowSystemClock.advanceBy(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> track() {
+        return (Map<String, Object>) stats.toMap().get("track");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> session() {
+        return (Map<String, Object>) stats.toMap().get("session");
+    }
+
+    @Before
+    public void setUp() {
+        stats = new MusicStats();
+    }
+
+    @Test
+    public void measuresTheStartOfATrack() {
+        stats.onPlay("http://host/1.mp3", false);
+        advance(200);
+        stats.onPrepared();
+        advance(50);
+        stats.onFirstAudio();
+
+        // only the first ones count
+        advance(100);
+        stats.onPrepared();
+        stats.onFirstAudio();
+
+        assertEquals("http://host/1.mp3", track().get("url"));
+        assertEquals(false, track().get("fromCache"));
+        assertEquals(200L, track().get("preparedLatency"));
+        assertEquals(250L, track().get("firstAudioLatency"));
+        assertEquals(250L, session().get("firstPlayLatency"));
+        assertEquals(false, session().get("firstPlayWarm"));
+    }
+
+    @Test
+    public void countsRebuffersAndSeeks() {
+        stats.onPlay("http://host/1.mp3", true);
+        stats.onBufferingStart();
+        advance(300);
+        // reported once per stall
+        stats.onBufferingStart();
+        advance(200);
+        stats.onBufferingEnd();
+
+        stats.onSeek();
+        advance(40);
+        stats.onSeekComplete();
+        stats.onSeek();
+        advance(60);
+        stats.onSeekComplete();
+
+        assertEquals(1, track().get("rebuffers"));
+        assertEquals(500L, track().get("rebufferDuration"));
+        assertEquals(2, track().get("seeks"));
+        assertEquals(60L, track().get("seekLatency"));
+        assertEquals(50L, track().get("averageSeekLatency"));
+    }
+
+    @Test
+    public void includesTheRunningRebuffer() {
+        stats.onPlay("http://host/1.mp3", false);
+        stats.onBufferingStart();
+        advance(700);
+
+        assertEquals(700L, track().get("rebufferDuration"));
+        assertEquals(700L, session().get("rebufferDuration"));
+    }
+
+    @Test
+    public void resetsTheTrackAndKeepsTheSession() {
+        stats.onWarmedUp(80);
+        stats.onPlay("http://host/1.mp3", true);
+        advance(100);
+        stats.onPrepared();
+        stats.onError("Playback error 1 (-1004)");
+
+        stats.onPlay("http://host/2.mp3", false);
+        advance(300);
+        stats.onPrepared();
+
+        assertEquals(-1L, track().get("firstAudioLatency"));
+        assertEquals(0, track().get("errors"));
+        assertEquals(null, track().get("lastError"));
+        assertEquals(2, session().get("tracks"));
+        assertEquals(1, session().get("cacheHits"));
+        assertEquals(1, session().get("errors"));
+        assertEquals(200L, session().get("averagePreparedLatency"));
+        assertEquals(80L, session().get("warmUpDuration"));
+        assertEquals(true, session().get("firstPlayWarm"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void samplesTheBufferedPercentOncePerSecond() {
+        stats.onPlay("http://host/1.mp3", false);
+        advance(1000);
+
+        for (int i = 0; i < 10; i++) {
+            stats.onBufferingUpdate(i * 10);
+            advance(500);
+        }
+
+        List<List<Integer>> samples = (List<List<Integer>>) track().get("bufferedSamples");
+
+        assertEquals(90, track().get("bufferedPercent"));
+        assertEquals(5, samples.size());
+        assertEquals(1000, (int) samples.get(0).get(0));
+        assertEquals(20, (int) samples.get(1).get(1));
+    }
+}
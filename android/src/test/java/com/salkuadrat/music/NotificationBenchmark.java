@@ -0,0 +1,96 @@
+package com.salkuadrat.music;
+
+import android.os.Looper;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Notification updates, done on every position tick while playing.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class NotificationBenchmark {
+
+    private ServiceController<MusicPlayerService> controller;
+    private MusicPlayerService service;
+    private Music music;
+    private Map<String, Object> args;
+
+    @Before
+    public void setUp() {
+        controller = Robolectric.buildService(MusicPlayerService.class).create().startCommand(0, 1);
+        service = controller.get();
+
+        args = new HashMap<>();
+        args.put("id", "1");
+        args.put("title", "Title");
+        args.put("artist", "Artist");
+        args.put("album", "Album");
+        args.put("duration", 240000);
+        args.put("showPrevious", true);
+        args.put("showNext", true);
+
+        music = new Music()
+            .withSession(new MediaSessionCompat(service.getApplicationContext(), "MusicPlayerService"))
+            .withTrack(args)
+            .withState(Music.State.PLAYING);
+    }
+
+    @After
+    public void tearDown() {
+        music.session.release();
+        controller.destroy();
+        Benchmark.check();
+    }
+
+    @Test
+    public void positionTick() throws Exception {
+        // one tick per second of playback, the notification is published every time
+        Benchmark.measure("notification.positionTick", i -> {
+            service.showNotification(music.withPosition((i * 1000) % music.duration, music.duration));
+            shadowOf(Looper.getMainLooper()).idleFor(1, TimeUnit.SECONDS);
+        });
+    }
+
+    @Test
+    public void fastTick() throws Exception {
+        // ticks faster than the notification rate limit are coalesced
+        Benchmark.measure("notification.fastTick", i -> {
+            service.showNotification(music.withPosition((i * 100) % music.duration, music.duration));
+            shadowOf(Looper.getMainLooper()).idleFor(100, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    @Test
+    public void playPause() throws Exception {
+        // layout change, the notification builder is rebuilt
+        Benchmark.measure("notification.playPause", 500, 2000, i -> {
+            service.showNotification(music.withState(i % 2 == 0 ? Music.State.PLAYING : Music.State.PAUSED));
+            shadowOf(Looper.getMainLooper()).idleFor(1, TimeUnit.SECONDS);
+        });
+    }
+
+    @Test
+    public void musicChange() throws Exception {
+        // new music on the same layout, only the metadata is updated
+        Benchmark.measure("notification.musicChange", 500, 2000, i -> {
+            args.put("id", String.valueOf(i % 10));
+            service.showNotification(music.withTrack(args));
+            shadowOf(Looper.getMainLooper()).idleFor(1, TimeUnit.SECONDS);
+        });
+    }
+}
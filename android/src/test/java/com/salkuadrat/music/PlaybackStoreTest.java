@@ -0,0 +1,99 @@
+package com.salkuadrat.music;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Session persisted in the store, loaded again as a new process would.
+ */
+public class PlaybackStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("playback", ".session").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static Map<String, Object> track(int id) {
+        Map<String, Object> track = new HashMap<>();
+        track.put("id", String.valueOf(id));
+        track.put("url", "http://host/" + id + ".mp3");
+        track.put("title", "Title " + id);
+        return track;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void reloadsTheLastSession() {
+        PlaybackStore store = new PlaybackStore(file);
+        Map<String, Object> session = new HashMap<>();
+        session.put("track", track(1));
+        store.saveSession(session);
+
+        session.put("track", track(2));
+        store.saveSession(session);
+        store.saveCached(4096);
+
+        for (int position = 0; position <= 60000; position += 1000) {
+            store.saveState(Music.State.PLAYING.ordinal(), position, 240000);
+        }
+
+        Map<String, Object> loaded = new PlaybackStore(file).load();
+        Map<String, Object> track = (Map<String, Object>) loaded.get("track");
+
+        assertEquals("2", track.get("id"));
+        assertEquals(Music.State.PLAYING.ordinal(), loaded.get("state"));
+        assertEquals(60000, loaded.get("position"));
+        assertEquals(240000, loaded.get("duration"));
+        assertEquals(4096L, loaded.get("cachedBytes"));
+    }
+
+    @Test
+    public void keepsTheSessionTooLarge() {
+        PlaybackStore store = new PlaybackStore(file);
+        Map<String, Object> session = new HashMap<>();
+        session.put("track", track(1));
+        store.saveSession(session);
+
+        List<Map<String, Object>> items = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            items.add(track(i));
+        }
+
+        session.put("items", items);
+
+        // not saved, the previous one is kept
+        assertEquals(false, store.saveSession(session));
+        assertNull(new PlaybackStore(file).load().get("items"));
+    }
+
+    @Test
+    public void forgetsTheClearedSession() {
+        PlaybackStore store = new PlaybackStore(file);
+        Map<String, Object> session = new HashMap<>();
+        session.put("track", track(1));
+        store.saveSession(session);
+        store.clear();
+
+        assertNull(new PlaybackStore(file).load());
+    }
+}
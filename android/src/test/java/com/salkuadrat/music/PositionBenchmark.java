@@ -0,0 +1,91 @@
+package com.salkuadrat.music;
+
+import android.os.Looper;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Position ticks through the listener of the plugin: snapshot update,
+ * persisted state and notification, on every tick while playing.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PositionBenchmark {
+
+    private ServiceController<MusicPlayerService> controller;
+    private MusicPlugin plugin;
+    private MediaSessionCompat session;
+    private File file;
+
+    // the plugin is wired by the Flutter engine and the bound service
+    private static void set(MusicPlugin plugin, String name, Object value) throws Exception {
+        Field field = MusicPlugin.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(plugin, value);
+    }
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        controller = Robolectric.buildService(MusicPlayerService.class).create().startCommand(0, 1);
+        MusicPlayerService service = controller.get();
+        session = new MediaSessionCompat(service.getApplicationContext(), "MusicPlayerService");
+        file = Files.createTempFile("playback", ".session").toFile();
+
+        Map<String, Object> args = new HashMap<>();
+        args.put("id", "1");
+        args.put("title", "Title");
+        args.put("artist", "Artist");
+        args.put("album", "Album");
+        args.put("url", "https://example.com/music.mp3");
+        args.put("duration", 240000);
+
+        plugin = new MusicPlugin();
+        set(plugin, "service", service);
+        set(plugin, "store", new PlaybackStore(file));
+
+        Field music = MusicPlugin.class.getDeclaredField("music");
+        music.setAccessible(true);
+        ((AtomicReference<Music>) music.get(plugin)).set(new Music()
+            .withSession(session)
+            .withTrack(args)
+            .withState(Music.State.PLAYING));
+
+        // the session is saved on the first update, only the state afterwards
+        plugin.onPositionUpdated(0, 240000);
+    }
+
+    @After
+    public void tearDown() {
+        session.release();
+        controller.destroy();
+        file.delete();
+        Benchmark.check();
+    }
+
+    @Test
+    public void positionUpdated() throws Exception {
+        Benchmark.measure("position.updated", i -> {
+            plugin.onPositionUpdated((i * 1000) % 240000, 240000);
+            shadowOf(Looper.getMainLooper()).idleFor(1, TimeUnit.SECONDS);
+        });
+    }
+}
@@ -0,0 +1,111 @@
+package com.salkuadrat.music;
+
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.flutter.plugin.common.BinaryMessenger;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * State transitions: playback events sent to Dart, stats updates
+ * and moving through the queue.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class StateBenchmark {
+
+    // drops the messages, only the native side is measured
+    private static final BinaryMessenger messenger = new BinaryMessenger() {
+        @Override
+        public void send(String channel, ByteBuffer message) {
+        }
+
+        @Override
+        public void send(String channel, ByteBuffer message, BinaryReply callback) {
+        }
+
+        @Override
+        public void setMessageHandler(String channel, BinaryMessageHandler handler) {
+        }
+    };
+
+    @After
+    public void tearDown() {
+        Benchmark.check();
+    }
+
+    @Test
+    public void positionEvent() throws Exception {
+        MusicEvents events = new MusicEvents(messenger);
+
+        // an anchor per tick, delivered on its own
+        Benchmark.measure("state.positionEvent", i -> {
+            events.send(MusicEvents.ANCHOR, 1000, i * 1000L);
+            shadowOf(Looper.getMainLooper()).idle();
+        });
+    }
+
+    @Test
+    public void playEvents() throws Exception {
+        MusicEvents events = new MusicEvents(messenger);
+
+        // events of a play command, batched in a single message
+        Benchmark.measure("state.playEvents", i -> {
+            events.send(MusicEvents.LOADING);
+            events.send(MusicEvents.POSITION, 0);
+            events.send(MusicEvents.DURATION, 240000);
+            events.send(MusicEvents.PLAYING);
+            events.send(MusicEvents.ANCHOR, 1000, 0);
+            shadowOf(Looper.getMainLooper()).idle();
+        });
+    }
+
+    @Test
+    public void stats() throws Exception {
+        MusicStats stats = new MusicStats();
+
+        Benchmark.measure("state.stats", i -> {
+            stats.onPlay("https://example.com/music.mp3", i % 2 == 0);
+            stats.onPrepared();
+            stats.onFirstAudio();
+            stats.onBufferingStart();
+            stats.onBufferingEnd();
+            stats.onBufferingUpdate(i % 100);
+            stats.onSeek();
+            stats.onSeekComplete();
+        });
+    }
+
+    @Test
+    public void advanceQueue() throws Exception {
+        MusicQueue queue = new MusicQueue();
+        List<Map<String, Object>> items = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> item = new HashMap<>();
+            item.put("id", String.valueOf(i));
+            items.add(item);
+        }
+
+        queue.set(items, 0);
+        queue.setRepeat(MusicQueue.REPEAT_ALL);
+
+        // completion: move to the next item and peek the one to preload
+        Benchmark.measure("state.advanceQueue", i -> {
+            queue.next(true);
+            queue.peekNext(true);
+        });
+    }
+}
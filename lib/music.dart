@@ -1,2 +1,9 @@
 export 'src/player.dart';
 export 'src/music.dart';
+export 'src/cache.dart';
+export 'src/queue.dart';
+export 'src/engine.dart';
+export 'src/download.dart';
+export 'src/preview.dart';
+export 'src/session.dart';
+export 'src/visualizer.dart';
@@ -0,0 +1,53 @@
+/// How cache files are named from music urls
+enum CacheKey {
+  /// The whole url
+  url,
+
+  /// The url without its query, so signed urls of the same music share one file
+  path,
+}
+
+/// Statistics of the music cache
+class CacheStats {
+  /// Cache directory
+  final String directory;
+
+  /// Total size of the cached files
+  final int bytes;
+
+  /// Number of cached files
+  final int files;
+
+  /// Maximum cache size (0 when not limited)
+  final int maxBytes;
+
+  /// Maximum number of cached files (0 when not limited)
+  final int maxFiles;
+
+  /// Number of musics played completely from cache
+  final int hits;
+
+  /// Number of musics played (at least partly) from network
+  final int misses;
+
+  /// Ratio of hits to all played musics
+  final double hitRatio;
+
+  /// Bytes already cached when musics started playing
+  final int bytesFromCache;
+
+  /// Bytes downloaded while musics were playing
+  final int bytesFromNetwork;
+
+  CacheStats.fromMap(Map<dynamic, dynamic> map)
+      : directory = map['directory'] as String,
+        bytes = map['bytes'] as int,
+        files = map['files'] as int,
+        maxBytes = map['maxBytes'] as int,
+        maxFiles = map['maxFiles'] as int,
+        hits = map['hits'] as int,
+        misses = map['misses'] as int,
+        hitRatio = map['hitRatio'] as double,
+        bytesFromCache = map['bytesFromCache'] as int,
+        bytesFromNetwork = map['bytesFromNetwork'] as int;
+}
@@ -0,0 +1,55 @@
+/// State of an offline download
+enum DownloadState {
+  /// Waiting for a free download slot
+  queued,
+
+  /// Downloading
+  running,
+
+  /// Paused, resumed from where it stopped
+  paused,
+
+  /// Downloaded and verified, played from local storage
+  completed,
+
+  /// Failed (network, length or checksum), can be resumed
+  failed,
+
+  /// Cancelled, its files are deleted
+  cancelled,
+}
+
+/// Offline download of a music
+class DownloadInfo {
+  /// Url of the music
+  final String url;
+
+  /// Id of the music, when given to [MusicPlayer.download]
+  final String? id;
+
+  final DownloadState state;
+
+  /// Bytes downloaded
+  final int bytes;
+
+  /// Total size, -1 when not known yet
+  final int total;
+
+  /// Error message of a failed download
+  final String? error;
+
+  /// Local file of a completed download
+  final String? path;
+
+  DownloadInfo.fromMap(Map<dynamic, dynamic> map)
+      : url = map['url'] as String,
+        id = map['id'] as String?,
+        state = DownloadState.values[map['state'] as int],
+        bytes = map['bytes'] as int,
+        total = map['total'] as int,
+        error = map['error'] as String?,
+        path = map['path'] as String?;
+
+  /// Downloaded part, from 0 to 1 (0 when the total is not known)
+  double get progress => total > 0 ? bytes / total : 0;
+}
@@ -0,0 +1,9 @@
+/// Native engine decoding and playing the music
+enum PlaybackEngine {
+  /// Android MediaPlayer
+  mediaPlayer,
+
+  /// MediaCodec decoding into its own buffer, played by an AudioTrack.
+  /// Starts faster and reports a more precise position.
+  codec,
+}
@@ -0,0 +1,153 @@
+import 'dart:async';
+import 'dart:developer';
+import 'dart:typed_data';
+
+import 'package:flutter/services.dart';
+
+/// Dispatches the native events and calls to the players, by player id:
+/// 0 for [MusicPlayer], the others for each [PreviewPlayer]
+class PlayerEvents {
+  /// Binary channel used by native code to stream playback events
+  static const String channel = 'salkuadrat/musicplayer/events';
+
+  /// Size of each event frame:
+  /// int16 type, int16 player, int32 arg, int64 value, int64 time
+  /// (nanoseconds, on the monotonic clock of [Timeline.now])
+  static const int frameSize = 24;
+
+  static const int loading = 1;
+  static const int position = 2;
+  static const int duration = 3;
+  static const int playing = 4;
+  static const int paused = 5;
+  static const int stopped = 6;
+  static const int completed = 7;
+  static const int playNext = 8;
+  static const int playPrevious = 9;
+  static const int anchor = 10;
+  static const int buffering = 11;
+
+  static final Map<int,
+          void Function(int type, int arg, int value, int time)> _listeners = {};
+  static final Map<int, void Function(String)> _errorListeners = {};
+  static Future<dynamic> Function(MethodCall)? _mainHandler;
+
+  /// Send the events of [player] to [listener]
+  static void listen(BinaryMessenger messenger, int player,
+      void Function(int type, int arg, int value, int time) listener) {
+    _listeners[player] = listener;
+    messenger.setMessageHandler(channel, _onEvents);
+  }
+
+  /// Send the errors of the preview [player] to [listener]
+  static void listenErrors(int player, void Function(String) listener) {
+    _errorListeners[player] = listener;
+  }
+
+  static void cancel(int player) {
+    _listeners.remove(player);
+    _errorListeners.remove(player);
+  }
+
+  /// Handle the native calls, the ones of the main player with [main]
+  static void handleCalls(MethodChannel channel,
+      [Future<dynamic> Function(MethodCall)? main]) {
+    if (main != null) {
+      _mainHandler = main;
+    }
+
+    channel.setMethodCallHandler(_onCall);
+  }
+
+  static Future<dynamic> _onCall(MethodCall call) async {
+    if (call.method == 'onPreviewError') {
+      Map<dynamic, dynamic> error = call.arguments as Map<dynamic, dynamic>;
+      _errorListeners[error['player'] as int]?.call(error['message'] as String);
+      return null;
+    }
+
+    return _mainHandler?.call(call);
+  }
+
+  /// Decode a batch of event frames sent by native code
+  static Future<ByteData?> _onEvents(ByteData? data) async {
+    if (data == null) {
+      return null;
+    }
+
+    for (int offset = 0;
+        offset + frameSize <= data.lengthInBytes;
+        offset += frameSize) {
+      int type = data.getInt16(offset, Endian.little);
+      int player = data.getInt16(offset + 2, Endian.little);
+      int arg = data.getInt32(offset + 4, Endian.little);
+      int value = data.getInt64(offset + 8, Endian.little);
+      int time = data.getInt64(offset + 16, Endian.little);
+      _listeners[player]?.call(type, arg, value, time);
+    }
+
+    return null;
+  }
+}
+
+/// Position of a player, extrapolated from the last anchor sent by native code
+/// (a position, the playback speed and when it was taken), reported every
+/// [interval] while playing. The time the anchor spent reaching Dart is
+/// accounted for, both sides read the same monotonic clock.
+class PositionAnchor {
+  final Duration interval;
+  final void Function(Duration) onPosition;
+
+  /// Duration in milliseconds the position is clamped to, 0 when unknown
+  int duration = 0;
+
+  // latency (microseconds) over which the anchor time is not trusted
+  static const int _maxLatency = 1000000;
+
+  int _position = 0;
+  double _speed = 0;
+  // when the anchor was taken, in microseconds of Timeline.now
+  int _time = Timeline.now;
+  Timer? _timer;
+
+  PositionAnchor(this.interval, this.onPosition);
+
+  /// Extrapolate from [position] (in milliseconds) at [speed], 0 when not playing,
+  /// taken at [time] (nanoseconds, see [PlayerEvents.frameSize]) or now
+  void set(int position, double speed, [int? time]) {
+    int now = Timeline.now;
+    int taken = time != null ? time ~/ 1000 : now;
+    _position = position;
+    _speed = speed;
+    // e.g. a clock without the same origin, extrapolated from its arrival
+    _time = taken <= now && now - taken < _maxLatency ? taken : now;
+    onPosition(this.position);
+
+    if (speed > 0) {
+      _timer ??= Timer.periodic(interval, (_) => onPosition(this.position));
+    } else {
+      cancel();
+    }
+  }
+
+  /// Stop extrapolating, back at the last anchor
+  void stop() => set(_position, 0);
+
+  /// Current position, extrapolated from the anchor
+  Duration get position {
+    int elapsed = ((Timeline.now - _time) ~/ 1000 * _speed).round();
+    int position = _position + elapsed;
+
+    if (duration > 0 && position > duration) {
+      position = duration;
+    }
+
+    return Duration(milliseconds: position);
+  }
+
+  /// Stop reporting the position
+  void cancel() {
+    _timer?.cancel();
+    _timer = null;
+  }
+}
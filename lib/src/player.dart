@@ -1,12 +1,37 @@
 import 'package:flutter/services.dart';
 
+import 'cache.dart';
+import 'download.dart';
+import 'engine.dart';
+import 'events.dart';
 import 'music.dart';
+import 'queue.dart';
+import 'session.dart';
+import 'visualizer.dart';
 import 'shared.dart';
 
 /// Music Player
 class MusicPlayer {
   MethodChannel channel = MethodChannel('salkuadrat/musicplayer');
 
+  /// Binary channel used by native code to stream playback events
+  static const String eventChannel = PlayerEvents.channel;
+
+  /// Id of the main player in the events, previews have their own
+  static const int _player = 0;
+
+  /// Position anchor sent by native code, the current position
+  /// is extrapolated from it using the playback speed
+  late final PositionAnchor _anchor =
+      PositionAnchor(positionInterval, (position) => onPosition?.call(position));
+
+  /// Native engine playing the musics (see [setEngine])
+  final PlaybackEngine engine;
+
+  /// How often [onPosition] is called while playing.
+  /// Use [position] to get the smooth position at any time (e.g. every frame).
+  final Duration positionInterval;
+
   /// Callback to be called when loading music
   final void Function()? onLoading;
 
@@ -28,6 +53,25 @@ class MusicPlayer {
   /// Callback to be called when play previous music
   final void Function()? onPlayPrevious;
 
+  /// Callback to be called when the preloaded music starts playing
+  /// right after the previous one, without any gap
+  final void Function(String)? onNextStarted;
+
+  /// Callback to be called when the native queue (or its current music) changes
+  final void Function(QueueState)? onQueueChanged;
+
+  /// Callback to be called periodically with the playback stats
+  /// (see [setStatsInterval] and [getStats])
+  final void Function(Map<String, dynamic>)? onStats;
+
+  /// Callback to be called when playback starts (true) or stops (false)
+  /// waiting for data (see [setBufferWatermark])
+  final void Function(bool)? onBuffering;
+
+  /// Callback to be called when an offline download progresses
+  /// or changes state (see [startDownload])
+  final void Function(DownloadInfo)? onDownload;
+
   /// Callback to be called when computed duration is available
   final void Function(Duration)? onDuration;
 
@@ -45,44 +89,43 @@ class MusicPlayer {
     this.onCompleted,
     this.onPlayNext,
     this.onPlayPrevious,
+    this.onNextStarted,
+    this.onQueueChanged,
+    this.onStats,
+    this.onBuffering,
+    this.onDownload,
     this.onDuration,
     this.onPosition,
     this.onError,
+    this.positionInterval = const Duration(seconds: 1),
+    this.engine = PlaybackEngine.mediaPlayer,
   }) {
     _init();
   }
 
   void _init() {
-    channel.setMethodCallHandler((MethodCall call) async {
+    if (engine != PlaybackEngine.mediaPlayer) {
+      setEngine(engine);
+    }
+
+    PlayerEvents.listen(channel.binaryMessenger, _player, _onEvent);
+    PlayerEvents.handleCalls(channel, (MethodCall call) async {
       switch (call.method) {
-        case 'onDuration':
-          int duration = call.arguments as int;
-          onDuration?.call(Duration(milliseconds: duration));
-          break;
-        case 'onPosition':
-          int position = call.arguments as int;
-          onPosition?.call(Duration(milliseconds: position));
-          break;
-        case 'onPlayPrevious':
-          onPlayPrevious?.call();
-          break;
-        case 'onPlayNext':
-          onPlayNext?.call();
+        case 'onNextStarted':
+          String id = call.arguments as String;
+          onNextStarted?.call(id);
           break;
-        case 'onLoading':
-          onLoading?.call();
+        case 'onQueueChanged':
+          Map<dynamic, dynamic> state = call.arguments as Map<dynamic, dynamic>;
+          onQueueChanged?.call(QueueState.fromMap(state));
           break;
-        case 'onPlaying':
-          onPlaying?.call();
+        case 'onStats':
+          Map<dynamic, dynamic> stats = call.arguments as Map<dynamic, dynamic>;
+          onStats?.call(Map<String, dynamic>.from(stats));
           break;
-        case 'onPaused':
-          onPaused?.call();
-          break;
-        case 'onStopped':
-          onStopped?.call();
-          break;
-        case 'onCompleted':
-          onCompleted?.call();
+        case 'onDownload':
+          Map<dynamic, dynamic> download = call.arguments as Map<dynamic, dynamic>;
+          onDownload?.call(DownloadInfo.fromMap(download));
           break;
         case 'onError':
           String message = call.arguments as String;
@@ -94,11 +137,56 @@ class MusicPlayer {
     });
   }
 
+  void _onEvent(int type, int arg, int value, int time) {
+    switch (type) {
+      case PlayerEvents.duration:
+        _anchor.duration = value;
+        onDuration?.call(Duration(milliseconds: value));
+        break;
+      case PlayerEvents.position:
+        _anchor.set(value, 0);
+        break;
+      case PlayerEvents.anchor:
+        _anchor.set(value, arg / 1000, time);
+        break;
+      case PlayerEvents.buffering:
+        onBuffering?.call(value == 1);
+        break;
+      case PlayerEvents.playPrevious:
+        onPlayPrevious?.call();
+        break;
+      case PlayerEvents.playNext:
+        onPlayNext?.call();
+        break;
+      case PlayerEvents.loading:
+        onLoading?.call();
+        break;
+      case PlayerEvents.playing:
+        onPlaying?.call();
+        break;
+      case PlayerEvents.paused:
+        onPaused?.call();
+        break;
+      case PlayerEvents.stopped:
+        onStopped?.call();
+        break;
+      case PlayerEvents.completed:
+        onCompleted?.call();
+        break;
+      default:
+        print('Unknown event $type');
+    }
+  }
+
+  /// Current position, extrapolated from the last position sent by native code
+  Duration get position => _anchor.position;
+
   /// Prepare music before real playing (if we want to show loading notification)
   Future<void> prepare(Music music) async {
     String image = await download(music.image);
+    _anchor.duration = 0;
     onDuration?.call(Duration(milliseconds: 0));
-    onPosition?.call(Duration(milliseconds: 0));
+    _anchor.set(0, 0);
     await channel.invokeMethod('prepare', <String, dynamic>{
       'id': music.id,
       'title': music.title,
@@ -116,8 +204,9 @@ class MusicPlayer {
       {bool showPrevious = false, bool showNext = false}) async {
     String image = await download(music.image);
 
+    _anchor.duration = 0;
     onDuration?.call(Duration(milliseconds: 0));
-    onPosition?.call(Duration(milliseconds: 0));
+    _anchor.set(0, 0);
     await channel.invokeMethod('play', <String, dynamic>{
       'id': music.id,
       'title': music.title,
@@ -132,6 +221,340 @@ class MusicPlayer {
     });
   }
 
+  /// Preload the next music in the background, so it will be played
+  /// without any gap after the current music is completed
+  /// (or instantly when it is played)
+  Future<void> preload(Music music,
+      {bool showPrevious = false, bool showNext = false}) async {
+    String image = await download(music.image);
+
+    await channel.invokeMethod('preload', <String, dynamic>{
+      'id': music.id,
+      'title': music.title,
+      'url': music.url,
+      'album': music.album,
+      'artist': music.artist,
+      'duration': music.duration?.inMilliseconds ?? 0,
+      'imageUrl': music.image,
+      'image': image,
+      'showPrevious': showPrevious,
+      'showNext': showNext,
+    });
+  }
+
+  Map<String, dynamic> _queueItem(Music music) {
+    return <String, dynamic>{
+      'id': music.id,
+      'title': music.title,
+      'url': music.url,
+      'album': music.album,
+      'artist': music.artist,
+      'duration': music.duration?.inMilliseconds ?? 0,
+      'imageUrl': music.image,
+    };
+  }
+
+  /// Set the native queue and play from [index] (unless [play] is false).
+  /// Next / previous (also from notification) and completion are then handled
+  /// natively, [onQueueChanged] is called when the current music changes.
+  Future<void> setQueue(List<Music> musics,
+      {int index = 0, bool play = true}) async {
+    await channel.invokeMethod('setQueue', <String, dynamic>{
+      'items': musics.map(_queueItem).toList(),
+      'index': index,
+      'play': play,
+    });
+  }
+
+  /// Add musics at the end of the queue
+  Future<void> appendQueue(List<Music> musics) async {
+    await channel.invokeMethod('appendQueue', <String, dynamic>{
+      'items': musics.map(_queueItem).toList(),
+    });
+  }
+
+  /// Insert a music into the queue
+  Future<void> insertQueue(int index, Music music) async {
+    await channel.invokeMethod('insertQueue', <String, dynamic>{
+      'index': index,
+      'item': _queueItem(music),
+    });
+  }
+
+  /// Remove a music from the queue
+  Future<void> removeQueue(int index) async {
+    await channel.invokeMethod('removeQueue', index);
+  }
+
+  /// Move a music of the queue to another index
+  Future<void> moveQueue(int from, int to) async {
+    await channel.invokeMethod('moveQueue', <String, dynamic>{
+      'from': from,
+      'to': to,
+    });
+  }
+
+  /// Play the queue in shuffled order
+  Future<void> setShuffle(bool shuffle) async {
+    await channel.invokeMethod('setShuffle', shuffle);
+  }
+
+  /// Set how the queue repeats
+  Future<void> setRepeat(RepeatMode repeat) async {
+    await channel.invokeMethod('setRepeat', repeat.index);
+  }
+
+  /// Play the music at [index] of the queue
+  Future<void> skipTo(int index) async {
+    await channel.invokeMethod('skipTo', index);
+  }
+
+  /// Get the current state of the queue
+  Future<QueueState> getQueue() async {
+    Map<dynamic, dynamic> state = await channel.invokeMethod('getQueue');
+    return QueueState.fromMap(state);
+  }
+
+  /// Cache the beginning of the upcoming musics in the background,
+  /// so playing them starts from the cache instead of the network.
+  /// Calling it again (e.g. when the queue changes) cancels the previous prefetch.
+  ///
+  /// [bytes] or [duration] (estimated with [bitrate] in kbps) sets how much
+  /// of each music is cached, [bytesPerSecond] limits the bandwidth used,
+  /// and [unmeteredOnly] skips prefetching on metered networks.
+  Future<void> prefetch(
+    List<Music> musics, {
+    int? bytes,
+    Duration duration = const Duration(seconds: 30),
+    int bitrate = 320,
+    int concurrency = 2,
+    int? bytesPerSecond,
+    bool unmeteredOnly = false,
+  }) async {
+    await channel.invokeMethod('prefetch', <String, dynamic>{
+      'urls': musics.map((music) => music.url).toList(),
+      'bytes': bytes ?? duration.inSeconds * bitrate * 1000 ~/ 8,
+      'concurrency': concurrency,
+      'bytesPerSecond': bytesPerSecond,
+      'unmeteredOnly': unmeteredOnly,
+    });
+  }
+
+  /// Cancel the running prefetch
+  Future<void> cancelPrefetch() async {
+    await channel.invokeMethod('cancelPrefetch');
+  }
+
+  /// Configure the music cache: its maximum size, maximum number of files,
+  /// directory, and how cache files are named.
+  /// The limits are applied at once, the directory and naming once no music
+  /// is being played or downloaded (the playing one is not interrupted).
+  Future<void> configureCache({
+    int? maxBytes,
+    int? maxFiles,
+    String? directory,
+    CacheKey key = CacheKey.url,
+  }) async {
+    await channel.invokeMethod('configureCache', <String, dynamic>{
+      'maxBytes': maxBytes,
+      'maxFiles': maxFiles,
+      'directory': directory,
+      'key': key == CacheKey.path ? 'path' : 'url',
+    });
+  }
+
+  /// Download musics with up to [connections] parallel range requests
+  /// of [segmentSize] bytes, to fill the cache faster on high latency links.
+  /// The bytes needed to play are always requested first.
+  Future<void> configureDownloads({
+    int connections = 4,
+    int segmentSize = 1024 * 1024,
+  }) async {
+    await channel.invokeMethod('configureDownloads', <String, dynamic>{
+      'connections': connections,
+      'segmentSize': segmentSize,
+    });
+  }
+
+  /// Get the cache usage and hit / miss statistics
+  Future<CacheStats> getCacheStats() async {
+    Map<dynamic, dynamic> stats = await channel.invokeMethod('getCacheStats');
+    return CacheStats.fromMap(stats);
+  }
+
+  /// Whether the music is completely cached
+  Future<bool> isCached(Music music) async {
+    return await channel.invokeMethod('isCached', music.url) as bool;
+  }
+
+  /// Remove the music from cache
+  Future<bool> evict(Music music) async {
+    return await channel.invokeMethod('evict', music.url) as bool;
+  }
+
+  /// Remove all cached musics
+  Future<void> clearCache() async {
+    await channel.invokeMethod('clearCache');
+  }
+
+  /// Download the music for offline playback. Downloaded musics are kept
+  /// (never evicted like cached ones) and played from local storage.
+  /// When given, the [length] and the [checksum] (hex digest, see [algorithm])
+  /// of the file are checked once it is downloaded.
+  Future<void> startDownload(
+    Music music, {
+    String? checksum,
+    String algorithm = 'SHA-256',
+    int? length,
+  }) async {
+    await channel.invokeMethod('download', <String, dynamic>{
+      'url': music.url,
+      'id': music.id,
+      'checksum': checksum,
+      'algorithm': algorithm,
+      'length': length,
+    });
+  }
+
+  /// Pause the download of the music, [resumeDownload] continues it
+  Future<void> pauseDownload(Music music) async {
+    await channel.invokeMethod('pauseDownload', music.url);
+  }
+
+  /// Resume a paused or failed download from where it stopped
+  Future<void> resumeDownload(Music music) async {
+    await channel.invokeMethod('resumeDownload', music.url);
+  }
+
+  /// Cancel the download of the music and delete it, even when completed
+  Future<bool> cancelDownload(Music music) async {
+    return await channel.invokeMethod('cancelDownload', music.url) as bool;
+  }
+
+  /// Get all the downloads, running or not
+  Future<List<DownloadInfo>> getDownloads() async {
+    List<dynamic> downloads = await channel.invokeMethod('getDownloads');
+    return downloads
+        .map((download) =>
+            DownloadInfo.fromMap(download as Map<dynamic, dynamic>))
+        .toList();
+  }
+
+  /// Whether the music is downloaded (and verified)
+  Future<bool> isDownloaded(Music music) async {
+    return await channel.invokeMethod('isDownloaded', music.url) as bool;
+  }
+
+  /// How many musics are downloaded at the same time
+  Future<void> setDownloadConcurrency(int concurrency) async {
+    await channel.invokeMethod('setDownloadConcurrency', concurrency);
+  }
+
+  /// Get the quality of experience stats of the current music (`track`)
+  /// and of the whole session (`session`): prepare and first audio latency (ms),
+  /// rebuffer count and duration, buffered percentage, seek latency, errors,
+  /// cache hits and the first play latency, cold or warm (see [warmUp]).
+  Future<Map<String, dynamic>> getStats() async {
+    Map<dynamic, dynamic> stats = await channel.invokeMethod('getStats');
+    return Map<String, dynamic>.from(stats);
+  }
+
+  /// Call [onStats] every [interval] (or stop when null)
+  Future<void> setStatsInterval(Duration? interval) async {
+    await channel.invokeMethod('setStatsInterval', interval?.inMilliseconds ?? 0);
+  }
+
+  /// Do the work of the first play ahead of time, off the main thread:
+  /// start the cache proxy, load the cache index, create the notification
+  /// channel and bind the service. The session stats report the first play
+  /// latency (`firstPlayLatency`) and whether it was warm (`firstPlayWarm`).
+  Future<void> warmUp() async {
+    await channel.invokeMethod('warmUp');
+  }
+
+  /// Warm up automatically when the plugin is attached, from the next launch
+  Future<void> setAutoWarmUp(bool enabled) async {
+    await channel.invokeMethod('setAutoWarmUp', enabled);
+  }
+
+  /// Restore the session saved when the app was killed while playing:
+  /// the music (prepared from the cache, paused at its position) and the queue.
+  /// Call it at start, before playing. Returns null when there is nothing to restore.
+  /// The session is saved on every state change and position update,
+  /// and forgotten when the music is stopped.
+  Future<RestoredSession?> restore() async {
+    Map<dynamic, dynamic>? session = await channel.invokeMethod('restore');
+
+    if (session == null) {
+      return null;
+    }
+
+    RestoredSession restored = RestoredSession.fromMap(session);
+    _anchor.duration = restored.duration.inMilliseconds;
+    onDuration?.call(restored.duration);
+    _anchor.set(restored.position.inMilliseconds, 0);
+    return restored;
+  }
+
+  /// Stream the spectrum ([VisualizerMode.fft]) or the waveform of the music,
+  /// [rate] times per second (up to the capture rate of the device).
+  /// [bands] reduces the values natively (log spaced bands for the spectrum),
+  /// 0 sends all of them (half the capture [size] for the spectrum).
+  /// Capturing only runs while the stream is listened to, and one stream
+  /// is captured at a time. Needs the RECORD_AUDIO permission.
+  Stream<VisualizerFrame> visualizer({
+    VisualizerMode mode = VisualizerMode.fft,
+    int rate = 20,
+    int bands = 0,
+    int size = 1024,
+  }) {
+    return PlayerVisualizer.stream(channel, mode, rate, bands, size);
+  }
+
+  /// Fade from each music to the next one over [duration], starting
+  /// [duration] before the end. The next music (preloaded or queued) takes over
+  /// at the middle of the fade. [Duration.zero] chains musics without gap instead.
+  Future<void> setCrossfade(Duration duration) async {
+    await channel.invokeMethod('setCrossfade', duration.inMilliseconds);
+  }
+
+  /// Select the native [engine], stopping the current music when it changes.
+  /// The codec engine decodes up to [buffer] ahead, and starts playing
+  /// (or continues after a seek or a stall) once [start] is decoded.
+  Future<void> setEngine(
+    PlaybackEngine engine, {
+    Duration buffer = const Duration(seconds: 2),
+    Duration start = const Duration(milliseconds: 100),
+  }) async {
+    await channel.invokeMethod('setEngine', <String, dynamic>{
+      'engine': engine.index,
+      'bufferMs': buffer.inMilliseconds,
+      'startMs': start.inMilliseconds,
+    });
+  }
+
+  /// Wait until [start] of music is buffered before starting to play,
+  /// and until [resume] is buffered again when playback stalls,
+  /// instead of playing as soon as possible and stalling repeatedly.
+  /// Durations are converted to bytes with the estimated [bitrate] (kbps),
+  /// or use [startBytes] and [resumeBytes]. Null disables the watermark.
+  Future<void> setBufferWatermark({
+    Duration? start,
+    Duration? resume,
+    int? startBytes,
+    int? resumeBytes,
+    int bitrate = 320,
+  }) async {
+    int? bytes(Duration? duration) =>
+        duration == null ? null : duration.inMilliseconds * bitrate ~/ 8;
+
+    await channel.invokeMethod('setBufferWatermark', <String, dynamic>{
+      'start': startBytes ?? bytes(start),
+      'resume': resumeBytes ?? bytes(resume),
+      'bitrate': bitrate,
+    });
+  }
+
   /// Pause current music
   Future<void> pause() async {
     await channel.invokeMethod('pause');
@@ -152,6 +575,44 @@ class MusicPlayer {
     await channel.invokeMethod('seek', position.inMilliseconds);
   }
 
+  /// Set how often the position is updated while the app is in foreground
+  /// (1 second by default), in background (5 seconds), and while the user
+  /// is scrubbing the seek bar (250 milliseconds)
+  Future<void> setPositionInterval({
+    Duration? foreground,
+    Duration? background,
+    Duration? scrubbing,
+  }) async {
+    await channel.invokeMethod('setPositionInterval', <String, dynamic>{
+      'foreground': foreground?.inMilliseconds,
+      'background': background?.inMilliseconds,
+      'scrubbing': scrubbing?.inMilliseconds,
+    });
+  }
+
+  /// Start dragging the seek bar. Until [endScrub], [scrub] seeks are fast
+  /// (to the previous sync frame) and coalesced: while a seek is in flight only
+  /// the latest position waits for it, unless that position is already cached.
+  Future<void> beginScrub() async {
+    await channel.invokeMethod('beginScrub');
+  }
+
+  /// Seek while dragging the seek bar
+  Future<void> scrub(Duration position) async {
+    await channel.invokeMethod('scrub', position.inMilliseconds);
+  }
+
+  /// Release the seek bar, seeking exactly to [position]
+  Future<void> endScrub(Duration position) async {
+    await channel.invokeMethod('endScrub', position.inMilliseconds);
+  }
+
+  /// Tell the player the user is dragging the seek bar,
+  /// so the position will be updated more frequently
+  Future<void> setScrubbing(bool scrubbing) async {
+    await channel.invokeMethod('setScrubbing', scrubbing);
+  }
+
   /// Cancel notification
   Future<void> cancel() async {
     await channel.invokeMethod('cancel');
@@ -159,6 +620,7 @@ class MusicPlayer {
 
   /// Dispose
   Future<void> dispose() async {
+    _anchor.cancel();
     await channel.invokeMethod('dispose');
   }
 }
@@ -0,0 +1,125 @@
+import 'package:flutter/services.dart';
+
+import 'events.dart';
+import 'music.dart';
+
+/// Player for short previews (e.g. in a feed), playing alongside the main
+/// [MusicPlayer] without notification, queue or audio focus.
+///
+/// Native players are pooled and recycled: only a few previews are alive
+/// at once, the least recently used one is stopped (and created again
+/// when it is played again).
+class PreviewPlayer {
+  static int _nextId = 1;
+
+  MethodChannel channel = MethodChannel('salkuadrat/musicplayer');
+
+  /// Id of the player in the native calls and events
+  final int id = _nextId++;
+
+  late final PositionAnchor _anchor =
+      PositionAnchor(positionInterval, (position) => onPosition?.call(position));
+
+  /// How often [onPosition] is called while playing
+  final Duration positionInterval;
+
+  final void Function()? onLoading;
+  final void Function()? onPlaying;
+  final void Function()? onPaused;
+  final void Function()? onStopped;
+  final void Function()? onCompleted;
+  final void Function(bool)? onBuffering;
+  final void Function(Duration)? onDuration;
+  final void Function(Duration)? onPosition;
+  final void Function(String)? onError;
+
+  PreviewPlayer({
+    this.onLoading,
+    this.onPlaying,
+    this.onPaused,
+    this.onStopped,
+    this.onCompleted,
+    this.onBuffering,
+    this.onDuration,
+    this.onPosition,
+    this.onError,
+    this.positionInterval = const Duration(seconds: 1),
+  }) {
+    PlayerEvents.listen(channel.binaryMessenger, id, _onEvent);
+    PlayerEvents.listenErrors(id, (message) => onError?.call(message));
+    PlayerEvents.handleCalls(channel);
+  }
+
+  void _onEvent(int type, int arg, int value, int time) {
+    switch (type) {
+      case PlayerEvents.duration:
+        _anchor.duration = value;
+        onDuration?.call(Duration(milliseconds: value));
+        break;
+      case PlayerEvents.position:
+        _anchor.set(value, 0);
+        break;
+      case PlayerEvents.anchor:
+        _anchor.set(value, arg / 1000, time);
+        break;
+      case PlayerEvents.buffering:
+        onBuffering?.call(value == 1);
+        break;
+      case PlayerEvents.loading:
+        onLoading?.call();
+        break;
+      case PlayerEvents.playing:
+        onPlaying?.call();
+        break;
+      case PlayerEvents.paused:
+        onPaused?.call();
+        break;
+      case PlayerEvents.stopped:
+        _anchor.stop();
+        onStopped?.call();
+        break;
+      case PlayerEvents.completed:
+        onCompleted?.call();
+        break;
+    }
+  }
+
+  /// Current position, extrapolated from the last position sent by native code
+  Duration get position => _anchor.position;
+
+  /// Play the music
+  Future<void> play(Music music) async {
+    _anchor.duration = 0;
+    _anchor.set(0, 0);
+    await channel.invokeMethod('previewPlay', <String, dynamic>{
+      'player': id,
+      'url': music.url,
+    });
+  }
+
+  Future<void> pause() async {
+    await channel.invokeMethod('previewPause', <String, dynamic>{'player': id});
+  }
+
+  Future<void> resume() async {
+    await channel.invokeMethod('previewResume', <String, dynamic>{'player': id});
+  }
+
+  Future<void> stop() async {
+    await channel.invokeMethod('previewStop', <String, dynamic>{'player': id});
+  }
+
+  Future<void> seek(Duration position) async {
+    await channel.invokeMethod('previewSeek', <String, dynamic>{
+      'player': id,
+      'position': position.inMilliseconds,
+    });
+  }
+
+  /// Stop and release the player, its native players go back to the pool
+  Future<void> dispose() async {
+    _anchor.cancel();
+    PlayerEvents.cancel(id);
+    await channel.invokeMethod('previewDispose', <String, dynamic>{'player': id});
+  }
+}
@@ -0,0 +1,36 @@
+/// How the native queue repeats
+enum RepeatMode {
+  /// Stop after the last music
+  off,
+
+  /// Repeat the current music
+  one,
+
+  /// Repeat the whole queue
+  all,
+}
+
+/// State of the native queue
+class QueueState {
+  /// Index of the current music in the queue (-1 when empty)
+  final int index;
+
+  /// Number of musics in the queue
+  final int length;
+
+  /// Whether the queue is played in shuffled order
+  final bool shuffle;
+
+  /// Repeat mode
+  final RepeatMode repeat;
+
+  /// ID of the current music
+  final String? id;
+
+  QueueState.fromMap(Map<dynamic, dynamic> map)
+      : index = map['index'] as int,
+        length = map['length'] as int,
+        shuffle = map['shuffle'] as bool,
+        repeat = RepeatMode.values[map['repeat'] as int],
+        id = map['id'] as String?;
+}
@@ -0,0 +1,47 @@
+import 'music.dart';
+import 'queue.dart';
+
+/// Playback session restored after the app was killed (see [MusicPlayer.restore])
+class RestoredSession {
+  /// Restored music, prepared and paused at [position]
+  final Music music;
+
+  /// Position of the music when the session was saved
+  final Duration position;
+
+  /// Duration of the music (zero when it was not known yet)
+  final Duration duration;
+
+  /// Bytes of the music that were cached when the session was saved
+  final int cachedBytes;
+
+  /// When the session was saved
+  final DateTime savedAt;
+
+  /// Restored native queue (empty when none was set)
+  final QueueState queue;
+
+  RestoredSession.fromMap(Map<dynamic, dynamic> map)
+      : music = _music(map['track'] as Map<dynamic, dynamic>),
+        position = Duration(milliseconds: map['position'] as int),
+        duration = Duration(milliseconds: map['duration'] as int),
+        cachedBytes = map['cachedBytes'] as int,
+        savedAt = DateTime.fromMillisecondsSinceEpoch(map['savedAt'] as int),
+        queue = QueueState.fromMap(map['queue'] as Map<dynamic, dynamic>);
+
+  static Music _music(Map<dynamic, dynamic> track) {
+    int? duration = track['duration'] as int?;
+
+    return Music(
+      id: track['id'] as String?,
+      url: track['url'] as String,
+      artist: track['artist'] as String,
+      album: track['album'] as String?,
+      title: track['title'] as String,
+      image: track['imageUrl'] as String? ?? '',
+      duration: duration != null && duration > 0
+          ? Duration(milliseconds: duration)
+          : null,
+    );
+  }
+}
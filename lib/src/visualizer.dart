@@ -0,0 +1,89 @@
+import 'dart:async';
+import 'dart:typed_data';
+
+import 'package:flutter/services.dart';
+
+/// Data streamed by [MusicPlayer.visualizer]
+enum VisualizerMode {
+  /// Spectrum magnitudes from 0 to 1, from the lowest frequency to the highest
+  fft,
+
+  /// Waveform samples from -1 to 1
+  waveform,
+}
+
+/// One capture of the visualizer
+class VisualizerFrame {
+  /// Spectrum or waveform
+  final VisualizerMode mode;
+
+  /// Magnitudes (or samples), reduced to the requested number of bands
+  final Float32List values;
+
+  /// When it was captured, on the clock of [Timeline.now] (monotonic)
+  final Duration timestamp;
+
+  VisualizerFrame(this.mode, this.values, this.timestamp);
+}
+
+/// Stream of the native visualizer, capturing only while it is listened to
+class PlayerVisualizer {
+  /// Binary channel used by native code to stream the captures
+  static const String channel = 'salkuadrat/musicplayer/visualizer';
+
+  /// Size of the header of each capture:
+  /// int32 mode, int32 count, int64 time, then count float32
+  static const int headerSize = 16;
+
+  static Stream<VisualizerFrame> stream(MethodChannel methods,
+      VisualizerMode mode, int rate, int bands, int size) {
+    BinaryMessenger messenger = methods.binaryMessenger;
+    late StreamController<VisualizerFrame> controller;
+
+    controller = StreamController<VisualizerFrame>.broadcast(
+      onListen: () async {
+        messenger.setMessageHandler(channel, (ByteData? data) async {
+          if (data != null) {
+            controller.add(_decode(data));
+          }
+
+          return null;
+        });
+
+        try {
+          await methods.invokeMethod('startVisualizer', <String, dynamic>{
+            'mode': mode.index,
+            'rate': rate,
+            'bands': bands,
+            'size': size,
+          });
+        } on PlatformException catch (e) {
+          controller.addError(e);
+        }
+      },
+      onCancel: () async {
+        messenger.setMessageHandler(channel, null);
+        await methods.invokeMethod('stopVisualizer');
+      },
+    );
+
+    return controller.stream;
+  }
+
+  static VisualizerFrame _decode(ByteData data) {
+    int mode = data.getInt32(0, Endian.little);
+    int count = data.getInt32(4, Endian.little);
+    int time = data.getInt64(8, Endian.little);
+    Float32List values = Float32List(count);
+
+    for (int i = 0; i < count; i++) {
+      values[i] = data.getFloat32(headerSize + i * 4, Endian.little);
+    }
+
+    return VisualizerFrame(
+      VisualizerMode.values[mode],
+      values,
+      Duration(microseconds: time ~/ 1000),
+    );
+  }
+}